@@ -0,0 +1,42 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * A {@link LabelHandleListener} that receives the objects a whole segment of
+ * a sub-division at a time, instead of one call per object. The coordinates
+ * are in Garmin units.
+ * <p>
+ * The parser sends everything it decodes from the RGN with
+ * {@link #addObjects(ObjectBatch)}, the other methods are still used by the
+ * other sources.
+ */
+public interface BatchMapListener extends LabelHandleListener {
+
+	/**
+	 * Will be called for every non-empty segment, after the call to
+	 * {@link #startSubDivision(SubDivision)}.
+	 * 
+	 * @param batch
+	 *            The objects. Don't keep a pointer on it for more than the
+	 *            duration of this call.
+	 */
+	void addObjects(ObjectBatch batch);
+}
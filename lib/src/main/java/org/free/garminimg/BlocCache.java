@@ -0,0 +1,204 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the blocs read from the .img files, shared by every map of an
+ * {@link ImgContext}.
+ * <p>
+ * Blocs are identified by their physical file and their position in it, so
+ * all the maps contained in one gmapsupp.img share the same entries. Once the
+ * byte budget is exceeded, blocs are evicted with the CLOCK algorithm (an
+ * approximation of LRU).
+ * <p>
+ * Lookups never block: only the insertions (that follow a read from the
+ * disk anyway) are serialized.
+ */
+public class BlocCache {
+
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Number of bits used by the bloc position in the keys, enough for 1TB
+	 * files.
+	 */
+	private static final int POS_BITS = 40;
+
+	private final ConcurrentHashMap<Long, Entry> blocs = new ConcurrentHashMap<Long, Entry>(
+			256);
+
+	/**
+	 * The clock of the cached entries, the head being the hand. Guarded by
+	 * this.
+	 */
+	private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+	private final HashMap<File, Integer> fileIds = new HashMap<File, Integer>();
+
+	private long maxSize;
+
+	private long size;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public BlocCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return The identifier of the given physical file, to be used with
+	 *         {@link #get(int, long)} and {@link #put(int, long, byte[])}.
+	 */
+	public synchronized int getFileId(File file) {
+		File key = file.getAbsoluteFile();
+		Integer result = fileIds.get(key);
+		if (result == null) {
+			result = fileIds.size();
+			fileIds.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The cached bloc or null if it has to be read.
+	 */
+	public byte[] get(int fileId, long pos) {
+		Entry entry = blocs.get(getKey(fileId, pos));
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.referenced = true;
+		hits.incrementAndGet();
+		return entry.bloc;
+	}
+
+	/**
+	 * Add a bloc to the cache.
+	 * 
+	 * @return The bloc to use: if another thread was faster to read the same
+	 *         bloc, its version is returned.
+	 */
+	public synchronized byte[] put(int fileId, long pos, byte[] bloc) {
+		Long key = getKey(fileId, pos);
+		Entry existing = blocs.get(key);
+		if (existing != null)
+			return existing.bloc;
+		if (bloc.length > maxSize)
+			return bloc;
+		Entry entry = new Entry(key, bloc);
+		blocs.put(key, entry);
+		clock.add(entry);
+		size += bloc.length;
+		trim();
+		return bloc;
+	}
+
+	/**
+	 * Drop every cached blocs. The counters are kept.
+	 */
+	public synchronized void clear() {
+		blocs.clear();
+		clock.clear();
+		size = 0;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Change the byte budget, dropping blocs if needed.
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trim();
+	}
+
+	/**
+	 * @return The number of bytes currently cached.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized String toString() {
+		return "size=" + size + "/" + maxSize + " hits=" + hits + " misses="
+				+ misses + " evictions=" + evictions;
+	}
+
+	private void trim() {
+		while (size > maxSize && !clock.isEmpty()) {
+			Entry entry = clock.poll();
+			if (entry.referenced) {
+				// second chance
+				entry.referenced = false;
+				clock.add(entry);
+			} else {
+				blocs.remove(entry.key);
+				size -= entry.bloc.length;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static Long getKey(int fileId, long pos) {
+		return ((long) fileId << POS_BITS) | pos;
+	}
+
+	private static class Entry {
+		private final Long key;
+
+		private final byte[] bloc;
+
+		/**
+		 * Set on every hit, cleared when the clock hand passes. Races are
+		 * harmless, at worst a bloc gets one chance more or less.
+		 */
+		private boolean referenced;
+
+		public Entry(Long key, byte[] bloc) {
+			this.key = key;
+			this.bloc = bloc;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Receives the problems found while decoding the RGN sub-files, which are
+ * skipped or worked around. Called by the decoding threads, must be thread
+ * safe.
+ * 
+ * @see ImgContext#setDecodeDiagnostics(DecodeDiagnostics)
+ */
+public interface DecodeDiagnostics {
+
+	/**
+	 * A segment pointer goes past the end of the sub-division, the segment is
+	 * ignored.
+	 */
+	int SEGMENT_END_TOO_BIG = 0;
+
+	/**
+	 * A segment pointer is before the start of the segment, the segment is
+	 * ignored.
+	 */
+	int SEGMENT_END_TOO_SMALL = 1;
+
+	/**
+	 * The last object of a segment ends after the segment.
+	 */
+	int SEGMENT_OVERRUN = 2;
+
+	/**
+	 * The bit stream of an extended poly could not be decoded, the rest of
+	 * the segment is ignored.
+	 */
+	int BROKEN_BIT_STREAM = 3;
+
+	int NB_PROBLEMS = 4;
+
+	void problem(int problem, SubDivision subDivision);
+
+	/**
+	 * Just counts the problems, the default.
+	 */
+	public static class Counter implements DecodeDiagnostics {
+
+		private final AtomicLongArray counts = new AtomicLongArray(
+				NB_PROBLEMS);
+
+		public void problem(int problem, SubDivision subDivision) {
+			counts.incrementAndGet(problem);
+		}
+
+		public long getCount(int problem) {
+			return counts.get(problem);
+		}
+
+		public String toString() {
+			return "segmentEndTooBig=" + counts.get(SEGMENT_END_TOO_BIG)
+					+ " segmentEndTooSmall="
+					+ counts.get(SEGMENT_END_TOO_SMALL) + " segmentOverrun="
+					+ counts.get(SEGMENT_OVERRUN) + " brokenBitStream="
+					+ counts.get(BROKEN_BIT_STREAM);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * The objects of one segment of a sub-division, as decoded from the RGN, kept
+ * by the {@link GeometryCache}. Everything is in primitive arrays: the labels
+ * are kept as packed kind and offset, see {@link RgnSubFile}.
+ */
+class DecodedSegment implements RgnSubFile.ObjectSink {
+
+	/**
+	 * The type and sub-type of each object: (type << 8) | subType.
+	 */
+	private int[] types = new int[16];
+
+	private long[] labels = new long[16];
+
+	/**
+	 * For each object, the index of its first point. One more element for the
+	 * end of the last one.
+	 */
+	private int[] firstPoints = new int[17];
+
+	private int[] longitudes = new int[64];
+
+	private int[] latitudes = new int[64];
+
+	private int nbObjects = 0;
+
+	public void addPoint(int type, int subType, int longitude, int latitude,
+			long label) {
+		addObject((type << 8) | subType, label, 1);
+		longitudes[firstPoints[nbObjects - 1]] = longitude;
+		latitudes[firstPoints[nbObjects - 1]] = latitude;
+	}
+
+	public void addPoly(int type, int[] longitudes, int[] latitudes,
+			int nbPoints, long label) {
+		addObject(type << 8, label, nbPoints);
+		int first = firstPoints[nbObjects - 1];
+		System.arraycopy(longitudes, 0, this.longitudes, first, nbPoints);
+		System.arraycopy(latitudes, 0, this.latitudes, first, nbPoints);
+	}
+
+	/**
+	 * Send the objects to the given sink, through the coordinate buffers of
+	 * the context.
+	 * 
+	 * @param points
+	 *            True if the objects were added with
+	 *            {@link #addPoint(int, int, int, int, long)}.
+	 */
+	public void replay(RgnSubFile.ObjectSink sink, boolean points,
+			RgnContext rgnContext) {
+		for (int cpt = 0; cpt < nbObjects; ++cpt) {
+			int first = firstPoints[cpt];
+			if (points) {
+				sink.addPoint(types[cpt] >> 8, types[cpt] & 0xFF,
+						longitudes[first], latitudes[first], labels[cpt]);
+			} else {
+				int nbPoints = firstPoints[cpt + 1] - first;
+				rgnContext.checkCoordsSize(nbPoints);
+				System.arraycopy(longitudes, first, rgnContext.longs, 0,
+						nbPoints);
+				System.arraycopy(latitudes, first, rgnContext.lats, 0,
+						nbPoints);
+				sink.addPoly(types[cpt] >> 8, rgnContext.longs,
+						rgnContext.lats, nbPoints, labels[cpt]);
+			}
+		}
+	}
+
+	/**
+	 * Drop the spare room of the arrays, before caching.
+	 */
+	public void trim() {
+		int nbPoints = firstPoints[nbObjects];
+		types = copyOf(types, nbObjects);
+		labels = copyOf(labels, nbObjects);
+		firstPoints = copyOf(firstPoints, nbObjects + 1);
+		longitudes = copyOf(longitudes, nbPoints);
+		latitudes = copyOf(latitudes, nbPoints);
+	}
+
+	/**
+	 * @return An estimation of the memory used, in bytes.
+	 */
+	public long getSize() {
+		return 64 + 4L * types.length + 8L * labels.length + 4L
+				* firstPoints.length + 4L * longitudes.length + 4L
+				* latitudes.length;
+	}
+
+	private void addObject(int type, long label, int nbPoints) {
+		if (nbObjects == types.length) {
+			types = copyOf(types, nbObjects * 2);
+			labels = copyOf(labels, nbObjects * 2);
+			firstPoints = copyOf(firstPoints, nbObjects * 2 + 1);
+		}
+		int first = firstPoints[nbObjects];
+		if (first + nbPoints > longitudes.length) {
+			int newSize = Math.max(longitudes.length * 2, first + nbPoints);
+			longitudes = copyOf(longitudes, newSize);
+			latitudes = copyOf(latitudes, newSize);
+		}
+		types[nbObjects] = type;
+		labels[nbObjects] = label;
+		nbObjects++;
+		firstPoints[nbObjects] = first + nbPoints;
+	}
+
+	private static int[] copyOf(int[] old, int size) {
+		int[] result = new int[size];
+		System.arraycopy(old, 0, result, 0, Math.min(size, old.length));
+		return result;
+	}
+
+	private static long[] copyOf(long[] old, int size) {
+		long[] result = new long[size];
+		System.arraycopy(old, 0, result, 0, Math.min(size, old.length));
+		return result;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+
+/**
+ * The label of a contour line or of an elevation point. The elevation, in
+ * feet in the map, is converted and rounded when the name is first read.
+ */
+class ElevationLabel extends Label {
+
+	private final Label raw;
+
+	private final double coefUnitsDist;
+
+	private final int round;
+
+	public ElevationLabel(Label raw, double coefUnitsDist, int round) {
+		super(null, -1);
+		this.raw = raw;
+		this.coefUnitsDist = coefUnitsDist;
+		this.round = round;
+	}
+
+	Label getRaw() {
+		return raw;
+	}
+
+	protected void init() throws IOException {
+		name = raw.getName();
+		try {
+			double feet = Double.parseDouble(name);
+			name = Integer.toString((int) Math.round(feet * coefUnitsDist
+					/ round)
+					* round);
+		} catch (RuntimeException e) {
+			// not a number, kept as is
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.File;
+
+/**
+ * Progress of {@link ImgFilesBag#addFiles(java.util.Collection, boolean,
+ * SubFileReader, java.util.concurrent.Executor, FilesLoadingListener)}. The
+ * methods are called from the threads of the executor, once per file.
+ */
+public interface FilesLoadingListener {
+
+	/**
+	 * Called when a file has been parsed. Its maps will be visible once all
+	 * the files are loaded.
+	 * 
+	 * @param nbMaps
+	 *            The number of maps found in the file.
+	 * @param nbDone
+	 *            The number of files processed so far, this one included.
+	 * @param nbFiles
+	 *            The total number of files to load.
+	 */
+	void fileLoaded(File file, int nbMaps, int nbDone, int nbFiles);
+
+	/**
+	 * Called when a file cannot be parsed. The other files are still loaded.
+	 */
+	void fileFailed(File file, Exception error, int nbDone, int nbFiles);
+}
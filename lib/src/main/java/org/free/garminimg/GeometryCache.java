@@ -0,0 +1,203 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the objects decoded from the RGN sub-files, shared by every map of
+ * an {@link ImgContext}.
+ * <p>
+ * Entries are identified by the map, the sub-division and the kind of object,
+ * so adjacent tiles and successive zooms don't decode the same sub-divisions
+ * again. Once the byte budget is exceeded, entries are evicted with the CLOCK
+ * algorithm, like in the {@link BlocCache}. Lookups never block, only the
+ * insertions are serialized. Disabled (budget of 0) by default.
+ */
+public class GeometryCache {
+
+	private final ConcurrentHashMap<Key, Entry> segments = new ConcurrentHashMap<Key, Entry>(
+			256);
+
+	/**
+	 * The clock of the cached entries, the head being the hand. Guarded by
+	 * this.
+	 */
+	private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+	private volatile long maxSize;
+
+	/**
+	 * Guarded by this.
+	 */
+	private long size;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public GeometryCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return The cached segment or null if it has to be decoded.
+	 */
+	DecodedSegment get(RgnSubFile rgn, int subDivision, int segment) {
+		Entry entry = segments.get(new Key(rgn, subDivision, segment));
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.referenced = true;
+		hits.incrementAndGet();
+		return entry.segment;
+	}
+
+	synchronized void put(RgnSubFile rgn, int subDivision, int segment,
+			DecodedSegment decoded) {
+		long entrySize = decoded.getSize();
+		if (entrySize > maxSize)
+			return;
+		Key key = new Key(rgn, subDivision, segment);
+		if (segments.containsKey(key))
+			return; // decoded by another thread in the meantime
+		Entry entry = new Entry(key, decoded);
+		segments.put(key, entry);
+		clock.add(entry);
+		size += entrySize;
+		trim();
+	}
+
+	/**
+	 * Drop every cached segments. The counters are kept.
+	 */
+	public synchronized void clear() {
+		segments.clear();
+		clock.clear();
+		size = 0;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Change the byte budget, dropping segments if needed. 0 disables the
+	 * cache.
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		trim();
+	}
+
+	/**
+	 * @return The number of bytes currently cached (estimation).
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized String toString() {
+		return "size=" + size + "/" + maxSize + " hits=" + hits + " misses="
+				+ misses + " evictions=" + evictions;
+	}
+
+	private void trim() {
+		while (size > maxSize && !clock.isEmpty()) {
+			Entry entry = clock.poll();
+			if (entry.referenced) {
+				// second chance
+				entry.referenced = false;
+				clock.add(entry);
+			} else {
+				segments.remove(entry.key);
+				size -= entry.segment.getSize();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static class Entry {
+		private final Key key;
+
+		private final DecodedSegment segment;
+
+		/**
+		 * Set on every hit, cleared when the clock hand passes. Races are
+		 * harmless, at worst a segment gets one chance more or less.
+		 */
+		private boolean referenced;
+
+		public Entry(Key key, DecodedSegment segment) {
+			this.key = key;
+			this.segment = segment;
+		}
+	}
+
+	private static class Key {
+		private final RgnSubFile rgn;
+
+		private final int subDivision;
+
+		private final int segment;
+
+		public Key(RgnSubFile rgn, int subDivision, int segment) {
+			this.rgn = rgn;
+			this.subDivision = subDivision;
+			this.segment = segment;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return rgn == other.rgn && subDivision == other.subDivision
+					&& segment == other.segment;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(rgn) * 31 + subDivision) * 8
+					+ segment;
+		}
+	}
+}
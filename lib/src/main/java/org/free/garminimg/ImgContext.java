@@ -1,11 +1,83 @@
 package org.free.garminimg;
 
+import java.io.File;
+
 public class ImgContext {
 
 	public final double coefUnistsDist;
 
+	private boolean memoryMapped;
+
+	private File indexDirectory;
+
+	private final BlocCache blocCache = new BlocCache(
+			BlocCache.DEFAULT_MAX_SIZE);
+
+	private final GeometryCache geometryCache = new GeometryCache(0);
+
+	private volatile DecodeDiagnostics decodeDiagnostics = new DecodeDiagnostics.Counter();
+
 	public ImgContext(double coefUnistsDist) {
 
 		this.coefUnistsDist = coefUnistsDist;
 	}
+
+	public boolean isMemoryMapped() {
+
+		return memoryMapped;
+	}
+
+	/**
+	 * Read the .img files through memory mapped buffers instead of one system
+	 * call per read. Must be set before adding files.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+
+		this.memoryMapped = memoryMapped;
+	}
+
+	public File getIndexDirectory() {
+
+		return indexDirectory;
+	}
+
+	/**
+	 * Directory where the sidecar indexes of the .img files are kept, null to
+	 * parse the files on every start. Must be set before adding files.
+	 */
+	public void setIndexDirectory(File indexDirectory) {
+
+		this.indexDirectory = indexDirectory;
+	}
+
+	/**
+	 * @return The cache of blocs shared by every maps using this context.
+	 */
+	public BlocCache getBlocCache() {
+
+		return blocCache;
+	}
+
+	/**
+	 * @return The cache of decoded objects shared by every maps using this
+	 *         context. Disabled until its size is set.
+	 */
+	public GeometryCache getGeometryCache() {
+
+		return geometryCache;
+	}
+
+	public DecodeDiagnostics getDecodeDiagnostics() {
+
+		return decodeDiagnostics;
+	}
+
+	/**
+	 * Replace what receives the problems found in the maps, a
+	 * {@link DecodeDiagnostics.Counter} by default.
+	 */
+	public void setDecodeDiagnostics(DecodeDiagnostics decodeDiagnostics) {
+
+		this.decodeDiagnostics = decodeDiagnostics;
+	}
 }
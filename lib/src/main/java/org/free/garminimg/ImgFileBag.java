@@ -21,10 +21,12 @@ package org.free.garminimg;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * One .img file.
@@ -36,6 +38,11 @@ public class ImgFileBag {
 	public static final int IMG_B = 2;
 	public static final int IMG_R = 3;
 
+	/**
+	 * How many times a read is tried again after its file was closed.
+	 */
+	private static final int MAX_READ_RETRIES = 3;
+
 	private final File file;
 
 	private String mapCode;
@@ -49,20 +56,15 @@ public class ImgFileBag {
 
 	private String description;
 
-	private ImgFileInputStream inputPrivate;
-
-	private boolean inputLocked;
+	/**
+	 * The physical file, shared with the other maps of the same .img.
+	 */
+	private final ImgFileHandles.Handle handle;
 
 	private final ImgFilesBag parent;
 
 	private boolean initBoundariesDone;
 
-	/**
-	 * Keep a cache of used blocs. Simple implementation, there is room for
-	 * improvement...
-	 */
-	private final HashMap<Long, WeakReference<byte[]>> blocCache = new HashMap<Long, WeakReference<byte[]>>();
-
 	private int northBoundary;
 
 	private int southBoundary;
@@ -71,13 +73,13 @@ public class ImgFileBag {
 
 	private int westBoundary;
 
-	private final boolean xored;
+	private volatile NameIndex nameIndex;
 
 	public ImgFileBag(File file, ImgFilesBag parent, boolean xored)
 			throws IOException {
 		this.file = file;
 		this.parent = parent;
-		this.xored = xored;
+		this.handle = parent.getFileHandles().get(file, xored);
 	}
 
 	public ImgContext getImgContext() {
@@ -89,21 +91,40 @@ public class ImgFileBag {
 		return description;
 	}
 
-	public synchronized byte[] getBloc(long pos, long blocSize)
-			throws IOException {
-		WeakReference<byte[]> reference = blocCache.get(pos);
-		byte[] result;
-		if (reference == null || (result = reference.get()) == null) {
-			ImgFileInputStream input = getInput();
-			input.seek(pos);
+	/**
+	 * Can be called by several threads at the same time, cache hits don't
+	 * block and misses on different blocs are read in parallel.
+	 */
+	public byte[] getBloc(long pos, long blocSize) throws IOException {
+		BlocCache cache = getImgContext().getBlocCache();
+		byte[] result = cache.get(handle.getFileId(), pos);
+		if (result == null) {
 			result = new byte[(int) blocSize];
-			input.readBloc(result);
-			blocCache.put(pos, new WeakReference<byte[]>(result));
-			releaseInput();
+			readBloc(pos, result);
+			result = cache.put(handle.getFileId(), pos, result);
 		}
 		return result;
 	}
 
+	private void readBloc(long pos, byte[] bloc) throws IOException {
+		for (int retry = 0;; ++retry) {
+			ImgFileInputStream input = handle.acquire();
+			try {
+				input.readBloc(pos, bloc);
+				return;
+			} catch (ClosedChannelException e) {
+				// closed by another thread or by an interrupt (which closes
+				// the channel for everybody), the next acquire re-opens it
+				handle.invalidate(input);
+				if (e instanceof ClosedByInterruptException
+						|| retry >= MAX_READ_RETRIES)
+					throw e;
+			} finally {
+				handle.release();
+			}
+		}
+	}
+
 	public long getFullSurface() throws IOException {
 		initBoundaries();
 		if (tre != null)
@@ -182,17 +203,84 @@ public class ImgFileBag {
 		}
 	}
 
+	/**
+	 * @return The sub-divisions
+	 *         {@link #readMap(int, int, int, int, int, int, BitSet, MapListener)}
+	 *         would parse, in the same order, or null if the map is out of the
+	 *         area.
+	 */
+	List<SubDivision> findSubDivisions(int minLong, int maxLong, int minLat,
+			int maxLat, int resolution) throws IOException {
+		if (!containsCoordinates(minLong, maxLong, minLat, maxLat))
+			return null;
+		if (tre == null)
+			return Collections.emptyList();
+		return tre.findSubDivisions(minLong, maxLong, minLat, maxLat,
+				resolution);
+	}
+
+	/**
+	 * Parse one of the sub-divisions returned by
+	 * {@link #findSubDivisions(int, int, int, int, int)}.
+	 */
+	void parseSubDivision(SubDivision subDivision, int objectKindFilter,
+			BitSet objectTypeFilter, MapListener listener, RgnContext rgnContext)
+			throws IOException {
+		rgn.parseSubDivision(subDivision, lbl, net, listener,
+				subDivision.getLevel(), objectKindFilter, objectTypeFilter,
+				rgnContext);
+	}
+
+	/**
+	 * @return The label of a handle given to a {@link LabelHandleListener}
+	 *         by this map, or null if the handle is
+	 *         {@link LabelHandleListener#NO_LABEL}. The name is decoded when
+	 *         read.
+	 */
+	public Label getLabel(long handle) {
+		if (handle == LabelHandleListener.NO_LABEL || rgn == null)
+			return null;
+		return rgn.createLabel(handle);
+	}
+
+	/**
+	 * @return The cache of the names of this map, or null if it has no LBL.
+	 */
+	public LabelCache getLabelCache() {
+		return lbl != null ? lbl.getLabelCache() : null;
+	}
+
+	/**
+	 * @return The index of the names of this map. Built on the first call,
+	 *         which decodes the whole map, unless it was kept in the index
+	 *         directory of the context.
+	 */
+	public NameIndex getNameIndex() throws IOException {
+		NameIndex result = nameIndex;
+		if (result == null) {
+			synchronized (this) {
+				result = nameIndex;
+				if (result == null) {
+					result = NameIndex.create(this);
+					nameIndex = result;
+				}
+			}
+		}
+		return result;
+	}
+
 	public File getFile() {
 		return file;
 	}
 
-	public synchronized boolean close() throws IOException {
-		if (!inputLocked && inputPrivate != null) {
-			inputPrivate.close();
-			inputPrivate = null;
-			return true;
-		}
-		return false;
+	/**
+	 * Close the underlying file if nobody is reading it. As it is shared with
+	 * the other maps of the same .img, they are affected too.
+	 * 
+	 * @return false if the file is in use.
+	 */
+	public boolean close() throws IOException {
+		return handle.close();
 	}
 
 	public int getNorthBoundary() throws IOException {
@@ -224,9 +312,11 @@ public class ImgFileBag {
 	}
 
 	public int getXorByte() throws IOException {
-		int result = getInput().getXor();
-		releaseInput();
-		return result;
+		try {
+			return handle.acquire().getXor();
+		} finally {
+			handle.release();
+		}
 	}
 
 	public String getMapCode() {
@@ -248,20 +338,6 @@ public class ImgFileBag {
 		this.tre = tre;
 	}
 
-	private synchronized void releaseInput() {
-		inputLocked = false;
-	}
-
-	private synchronized ImgFileInputStream getInput() throws IOException {
-		if (inputPrivate == null) {
-			if (parent != null)
-				parent.registerOpenFile(this);
-			inputPrivate = new ImgFileInputStream(file, xored);
-		}
-		inputLocked = true;
-		return inputPrivate;
-	}
-
 	private boolean containsCoordinates(int minLong, int maxLong, int minLat,
 			int maxLat) throws IOException {
 		initBoundaries();
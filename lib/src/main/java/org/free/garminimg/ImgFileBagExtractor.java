@@ -52,7 +52,7 @@ public class ImgFileBagExtractor {
 			throw new IllegalStateException("Img Extractor not initiated");
 		} else {
 			try {
-				extract(result, fullInit);
+				extractImgFileBags(result, fullInit);
 			} catch (IOException e) {
 				String m = e.getMessage();
 				Log.e("-img extractor->", m != null ? m : "");
@@ -61,6 +61,32 @@ public class ImgFileBagExtractor {
 		return result;
 	}
 
+	/**
+	 * Same as {@link #createImgFileBags(boolean)}, but reports the errors. In
+	 * that case, result contains the maps read before the error.
+	 */
+	void extractImgFileBags(List<ImgFileBag> result, boolean fullInit)
+			throws IOException {
+		// the sub-files of a SubFileReader cannot be indexed
+		File indexDirectory = parent.getImgContext().getIndexDirectory();
+		ImgFileIndex index = null;
+		if (indexDirectory != null && subFileReader == null) {
+			index = new ImgFileIndex(file, indexDirectory);
+			List<ImgFileBag> indexed = index.load(parent);
+			if (indexed != null) {
+				result.addAll(indexed);
+				return;
+			}
+		}
+		try {
+			extract(result, fullInit);
+		} finally {
+			closeInput();
+		}
+		if (index != null && fullInit)
+			index.save(result);
+	}
+
 	private void extract(List<ImgFileBag> result, boolean fullInit)
 			throws IOException {
 		ImgFileInputStream input = openInput();
@@ -273,11 +299,11 @@ public class ImgFileBagExtractor {
 				}
 			}
 		}
-		closeInput();
 	}
 
 	private synchronized ImgFileInputStream openInput() throws IOException {
-		inputPrivate = new ImgFileInputStream(file, true);
+		inputPrivate = new ImgFileInputStream(file, true, parent
+				.getImgContext().isMemoryMapped());
 		return inputPrivate;
 	}
 
@@ -0,0 +1,202 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the physical .img files. Every map extracted from the same
+ * file (the tiles of a gmapsupp.img for example) shares one handle, hence
+ * one open file and one set of entries in the {@link BlocCache}.
+ * <p>
+ * The handles are reference counted by their active readers. Idle handles
+ * stay open, but we cannot have too many files open at the same time (OS
+ * limitation): the oldest idle ones are closed when needed and re-opened on
+ * the next read.
+ */
+class ImgFileHandles {
+
+	private final ImgContext imgContext;
+
+	private final int maxOpenFiles;
+
+	private final ConcurrentHashMap<File, Handle> handles = new ConcurrentHashMap<File, Handle>();
+
+	/**
+	 * The handles currently open, oldest first. Guarded by this.
+	 */
+	private final List<Handle> openHandles = new ArrayList<Handle>();
+
+	public ImgFileHandles(ImgContext imgContext, int maxOpenFiles) {
+		this.imgContext = imgContext;
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * @return The handle shared by every users of the given physical file.
+	 *         The XOR flag of the first caller is used.
+	 */
+	public Handle get(File file, boolean xored) {
+		File key = file.getAbsoluteFile();
+		Handle result = handles.get(key);
+		if (result == null) {
+			Handle created = new Handle(key, xored, imgContext
+					.getBlocCache().getFileId(key));
+			result = handles.putIfAbsent(key, created);
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+
+	/**
+	 * Close every idle handles. The ones in use stay registered, to be closed
+	 * when more files are needed.
+	 */
+	public synchronized void closeAll() throws IOException {
+		Iterator<Handle> iterator = openHandles.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().close())
+				iterator.remove();
+		}
+	}
+
+	private synchronized void registerOpen(Handle handle) throws IOException {
+		int cpt = 0;
+		while (openHandles.size() >= maxOpenFiles && cpt < openHandles.size()) {
+			Handle toClose = openHandles.remove(0);
+			if (!toClose.close()) { // failed (was in use), retry with another
+									// one
+				openHandles.add(toClose);
+			}
+			++cpt;
+		}
+		// still there if it was invalidated
+		openHandles.remove(handle);
+		openHandles.add(handle);
+	}
+
+	/**
+	 * One physical file.
+	 */
+	class Handle {
+		private final File file;
+
+		private final boolean xored;
+
+		private final int fileId;
+
+		private volatile ImgFileInputStream input;
+
+		/**
+		 * Number of threads currently reading from {@link #input}.
+		 */
+		private final AtomicInteger users = new AtomicInteger();
+
+		private Handle(File file, boolean xored, int fileId) {
+			this.file = file;
+			this.xored = xored;
+			this.fileId = fileId;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The identifier of the file in the {@link BlocCache}.
+		 */
+		public int getFileId() {
+			return fileId;
+		}
+
+		/**
+		 * Must always be followed by a call to {@link #release()}.
+		 */
+		public ImgFileInputStream acquire() throws IOException {
+			users.incrementAndGet();
+			ImgFileInputStream result = input;
+			if (result == null) {
+				boolean opened = false;
+				try {
+					synchronized (this) {
+						result = input;
+						if (result == null) {
+							result = new ImgFileInputStream(file, xored,
+									imgContext.isMemoryMapped());
+							input = result;
+							opened = true;
+						}
+					}
+					// outside of the lock: registering may close other files
+					if (opened)
+						registerOpen(this);
+				} catch (IOException e) {
+					release();
+					throw e;
+				}
+			}
+			return result;
+		}
+
+		public void release() {
+			users.decrementAndGet();
+		}
+
+		/**
+		 * Forget a stream found closed, if it is still the current one, so
+		 * the next {@link #acquire()} opens the file again.
+		 */
+		public void invalidate(ImgFileInputStream closed) {
+			synchronized (this) {
+				if (input != closed)
+					return;
+				input = null;
+			}
+			try {
+				closed.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		/**
+		 * Close the file if nobody is reading it.
+		 * 
+		 * @return false if the file is in use.
+		 */
+		public synchronized boolean close() throws IOException {
+			if (users.get() == 0) {
+				if (input != null) {
+					input.close();
+					input = null;
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
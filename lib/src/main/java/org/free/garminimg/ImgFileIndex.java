@@ -0,0 +1,270 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar index of a .img file. Holds what {@link ImgFileBagExtractor} and
+ * the sub-files parse at startup (FAT entries, sub-file headers, bounds,
+ * levels and the sub-division tree) so that the next launches don't have to
+ * read the .img at all.
+ * <p>
+ * The index is validated against the size, the modification time and a hash
+ * of the header of the .img. When one of them doesn't match, or when the
+ * index cannot be read, it is ignored and rebuilt.
+ */
+class ImgFileIndex {
+
+	private static final String TAG = "-img index->";
+
+	private static final int MAGIC = 0x47494458; // GIDX
+
+	private static final int VERSION = 2;
+
+	private static final int HASHED_HEADER_SIZE = 8192;
+
+	private static final int SUB_FILE_TRE = 0;
+
+	private static final int SUB_FILE_RGN = 1;
+
+	private static final int SUB_FILE_LBL = 2;
+
+	private static final int SUB_FILE_NET = 3;
+
+	private final File file;
+
+	private final File indexFile;
+
+	ImgFileIndex(File file, File indexDirectory) {
+		this.file = file;
+		File absolute = file.getAbsoluteFile();
+		this.indexFile = new File(indexDirectory, absolute.getName() + "."
+				+ Integer.toHexString(absolute.getPath().hashCode()) + ".idx");
+	}
+
+	/**
+	 * @return The maps of the .img or null if the index is missing or out of
+	 *         date.
+	 */
+	List<ImgFileBag> load(ImgFilesBag parent) {
+		if (!indexFile.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION
+						|| !checkStamp(in))
+					return null;
+				int nbMaps = in.readInt();
+				List<ImgFileBag> result = new ArrayList<ImgFileBag>(nbMaps);
+				for (int cpt = 0; cpt < nbMaps; ++cpt) {
+					result.add(readMap(in, parent));
+				}
+				return result;
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.w(TAG, "Invalid index " + indexFile + ", rebuilding it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the index of the given maps, which must be fully initialized.
+	 * Failures are only logged, the maps are still usable.
+	 */
+	void save(List<ImgFileBag> maps) {
+		File directory = indexFile.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(TAG, "Cannot create " + directory);
+			return;
+		}
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeStamp(out);
+				out.writeInt(maps.size());
+				for (ImgFileBag map : maps) {
+					writeMap(out, map);
+				}
+			} finally {
+				out.close();
+			}
+			// replace the old index only once the new one is complete
+			replace(tmp, indexFile);
+		} catch (IOException | RuntimeException e) {
+			tmp.delete();
+			Log.w(TAG, "Cannot write index " + indexFile, e);
+		}
+	}
+
+	/**
+	 * @return Another file kept next to the index, for the same .img.
+	 */
+	File getSidecarFile(String extension) {
+		String path = indexFile.getPath();
+		return new File(path.substring(0, path.length() - "idx".length())
+				+ extension);
+	}
+
+	/**
+	 * Write what identifies the current version of the .img, to be checked
+	 * by {@link #checkStamp(DataInputStream)}.
+	 */
+	void writeStamp(DataOutputStream out) throws IOException {
+		out.writeLong(file.length());
+		out.writeLong(file.lastModified());
+		out.writeLong(hashHeader());
+	}
+
+	/**
+	 * @return False if the .img changed since the stamp was written.
+	 */
+	boolean checkStamp(DataInputStream in) throws IOException {
+		return in.readLong() == file.length()
+				&& in.readLong() == file.lastModified()
+				&& in.readLong() == hashHeader();
+	}
+
+	/**
+	 * Replace a file by a new version, written in tmp.
+	 */
+	static void replace(File tmp, File target) throws IOException {
+		if (!tmp.renameTo(target)) {
+			target.delete();
+			if (!tmp.renameTo(target))
+				throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	private long hashHeader() throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[(int) Math.min(HASHED_HEADER_SIZE,
+					input.length())];
+			input.readFully(header);
+			CRC32 crc = new CRC32();
+			crc.update(header, 0, header.length);
+			return crc.getValue();
+		} finally {
+			input.close();
+		}
+	}
+
+	private void writeMap(DataOutputStream out, ImgFileBag map)
+			throws IOException {
+		writeNullableString(out, map.getMapCode());
+		writeNullableString(out, map.getDescription());
+		writeSubFile(out, map.getTreFile());
+		writeSubFile(out, map.getRgnFile());
+		writeSubFile(out, map.getLblFile());
+		writeSubFile(out, map.getNetFile());
+	}
+
+	private void writeSubFile(DataOutputStream out, ImgSubFile subFile)
+			throws IOException {
+		out.writeBoolean(subFile != null);
+		if (subFile != null) {
+			out.writeUTF(subFile.getFilename());
+			out.writeUTF(subFile.getFiletype());
+			out.writeInt(subFile.getFileSize());
+			out.writeInt((int) subFile.getBlocSize());
+			out.writeInt(subFile.getInitialOffset());
+			subFile.writeIndex(out);
+		}
+	}
+
+	private ImgFileBag readMap(DataInputStream in, ImgFilesBag parent)
+			throws IOException {
+		ImgFileBag map = new ImgFileBag(file, parent, true);
+		map.setMapCode(readNullableString(in));
+		String description = readNullableString(in);
+		TreSubFile tre = (TreSubFile) readSubFile(in, map, SUB_FILE_TRE);
+		RgnSubFile rgn = (RgnSubFile) readSubFile(in, map, SUB_FILE_RGN);
+		LblSubFile lbl = (LblSubFile) readSubFile(in, map, SUB_FILE_LBL);
+		NetSubFile net = (NetSubFile) readSubFile(in, map, SUB_FILE_NET);
+		map.buildFromSubFiles(lbl, net, rgn, tre, description);
+		return map;
+	}
+
+	private ImgSubFile readSubFile(DataInputStream in, ImgFileBag map,
+			int kind) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		String filename = in.readUTF();
+		String filetype = in.readUTF();
+		int fileSize = in.readInt();
+		int blocSize = in.readInt();
+		int initialOffset = in.readInt();
+		ImgSubFile result = ImgSubFile.create(filename, filetype, fileSize,
+				blocSize, initialOffset, map);
+		if (!isKind(result, kind))
+			throw new IOException("Unexpected sub-file type: " + filetype);
+		result.readIndex(in);
+		return result;
+	}
+
+	private static boolean isKind(ImgSubFile subFile, int kind) {
+		switch (kind) {
+		case SUB_FILE_TRE:
+			return subFile instanceof TreSubFile;
+		case SUB_FILE_RGN:
+			return subFile instanceof RgnSubFile;
+		case SUB_FILE_LBL:
+			return subFile instanceof LblSubFile;
+		case SUB_FILE_NET:
+			return subFile instanceof NetSubFile;
+		default:
+			return false;
+		}
+	}
+
+	private static void writeNullableString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readNullableString(DataInputStream in)
+			throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
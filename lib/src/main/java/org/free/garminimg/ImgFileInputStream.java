@@ -22,30 +22,105 @@ package org.free.garminimg;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Handle the "decryption" of a .img file.
+ * <p>
+ * The file is either read through plain {@link RandomAccessFile} calls or,
+ * when memory mapped, directly from the OS page cache.
  */
 class ImgFileInputStream {
+
+	/**
+	 * Size of one mapped region. A single mapping cannot exceed 2GB, so
+	 * bigger files are split into several regions.
+	 */
+	private static final int MAP_REGION_SHIFT = 30;
+
+	private static final long MAP_REGION_SIZE = 1L << MAP_REGION_SHIFT;
+
+	/**
+	 * Multiplying a byte by this gives a long with the byte repeated 8 times.
+	 */
+	private static final long BYTE_TO_LONG = 0x0101010101010101L;
+
 	private final RandomAccessFile file;
 
+	private final FileChannel channel;
+
+	/**
+	 * The mapped regions of the file, null if the file is not memory mapped.
+	 */
+	private final MappedByteBuffer[] regions;
+
+	private final long length;
+
+	private long mappedPos;
+
 	private int xor;
 
 	public ImgFileInputStream(File input, boolean xored) throws IOException {
+		this(input, xored, false);
+	}
+
+	public ImgFileInputStream(File input, boolean xored, boolean mapped)
+			throws IOException {
 		file = new RandomAccessFile(input, "r");
+		channel = file.getChannel();
+		length = file.length();
+		if (mapped) {
+			try {
+				regions = map(channel, length);
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		} else {
+			regions = null;
+		}
 
 		// get the xor byte
 		if (xored) {
-			xor = file.read();
+			xor = regions == null ? file.read() : readByte();
 			seek(0);
 		}
 	}
 
+	private static MappedByteBuffer[] map(FileChannel channel, long length)
+			throws IOException {
+		int nbRegions = (int) ((length + MAP_REGION_SIZE - 1) >> MAP_REGION_SHIFT);
+		MappedByteBuffer[] result = new MappedByteBuffer[nbRegions];
+		for (int cpt = 0; cpt < nbRegions; ++cpt) {
+			long start = (long) cpt << MAP_REGION_SHIFT;
+			result[cpt] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(MAP_REGION_SIZE, length - start));
+		}
+		return result;
+	}
+
 	public void seek(long pos) throws IOException {
-		file.seek(pos);
+		if (regions != null)
+			mappedPos = pos;
+		else
+			file.seek(pos);
 	}
 
 	public int readByte() throws IOException {
+		if (regions != null) {
+			if (mappedPos >= length) {
+				mappedPos++;
+				return (-1 ^ xor) & 0xFF;
+			}
+			MappedByteBuffer region = regions[(int) (mappedPos >> MAP_REGION_SHIFT)];
+			int result = region.get((int) (mappedPos & (MAP_REGION_SIZE - 1)));
+			mappedPos++;
+			return (result ^ xor) & 0xFF;
+		}
 		return (file.read() ^ xor) & 0xFF;
 	}
 
@@ -65,10 +140,69 @@ class ImgFileInputStream {
 	}
 
 	public void readBloc(byte[] content) throws IOException {
-		file.read(content);
+		if (regions != null)
+			readMappedBloc(content);
+		else
+			file.read(content);
+		decode(content);
+	}
+
+	/**
+	 * Copy the bloc from the mapped regions. Like a plain read, what lies
+	 * after the end of the file is left untouched.
+	 */
+	private void readMappedBloc(byte[] content) {
+		mappedPos += readMappedBloc(mappedPos, content);
+	}
+
+	private int readMappedBloc(long pos, byte[] content) {
+		int done = 0;
+		while (done < content.length && pos + done < length) {
+			long cur = pos + done;
+			ByteBuffer region = regions[(int) (cur >> MAP_REGION_SHIFT)]
+					.duplicate();
+			int posInRegion = (int) (cur & (MAP_REGION_SIZE - 1));
+			int toCopy = Math.min(content.length - done, region.limit()
+					- posInRegion);
+			region.position(posInRegion);
+			region.get(content, done, toCopy);
+			done += toCopy;
+		}
+		return done;
+	}
+
+	/**
+	 * Read a bloc at the given position without touching the current
+	 * position, can be called by several threads at the same time.
+	 */
+	public void readBloc(long pos, byte[] content) throws IOException {
+		if (regions != null) {
+			readMappedBloc(pos, content);
+		} else {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, pos + buffer.position()) < 0)
+					break;
+			}
+		}
+		decode(content);
+	}
+
+	/**
+	 * Apply the XOR in place, 8 bytes at a time. As the mask is the same for
+	 * every byte, the byte order of the words doesn't matter.
+	 */
+	private void decode(byte[] content) {
 		if (xor == 0)
 			return;
-		for (int cpt = 0; cpt < content.length; cpt++) {
+		final LongBuffer words = ByteBuffer.wrap(content)
+				.order(ByteOrder.nativeOrder()).asLongBuffer();
+		final long mask = BYTE_TO_LONG * xor;
+		final int nbWords = words.limit();
+		for (int cpt = 0; cpt < nbWords; cpt++) {
+			words.put(cpt, words.get(cpt) ^ mask);
+		}
+		for (int cpt = nbWords * 8; cpt < content.length; cpt++) {
 			content[cpt] = (byte) (content[cpt] ^ xor);
 		}
 	}
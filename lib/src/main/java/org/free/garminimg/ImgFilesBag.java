@@ -25,40 +25,58 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The main entry point of the library. Manages the list of .img mapFiles.
  * <p>
- * Instances of this class are supposed to be fully thread safe.
+ * The list of maps can be read and changed by several threads at the same
+ * time. The reads don't lock: they work on an immutable snapshot of the maps,
+ * replaced when maps are added or removed.
  */
 public class ImgFilesBag {
 
 	private static final int MAX_OPEN_FILES = 9;
     private static final double UNIT_METER_TO_FEET = 3.2808D;
-	private static BitSet mapOthersFilter;
+	/**
+	 * The physical files, shared by the maps they contain.
+	 */
+	private final ImgFileHandles fileHandles;
+
+	private static final Comparator<ImgFileBag> FILE_COMPARATOR = new FileComparator();
 
-	private static BitSet mapBackgroundFilter;
+	private static final BitSet MAP_BACKGROUND_FILTER = createMapBackgroundFilter();
 
-	private static BitSet mapZonesFilter;
+	private static final BitSet MAP_CITY_FILTER = createMapCityFilter();
+
+	private static final BitSet MAP_ZONES_FILTER = createMapZonesFilter();
+
+	private static final BitSet MAP_FOREST_FILTER = createMapForestFilter();
 
 	/**
-	 * We cannot have too many files open at the same time (OS limitation) this
-	 * list keeps the list of files open.
-	 * <p>
-	 * Every usages must be synchronised manually.
+	 * Built from the other filters, must stay after them.
 	 */
-	private final List<ImgFileBag> openFiles = new ArrayList<>();
-
-	private final SortedSet<ImgFileBag> mapFiles = Collections
-			.synchronizedSortedSet(new TreeSet<>(new FileComparator()));
+	private static final BitSet MAP_OTHERS_FILTER = createMapOthersFilter();
 
-	private int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE,
-			minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+	/**
+	 * The current maps. Replaced (under the lock of this) when maps are added
+	 * or removed, never modified.
+	 */
+	private volatile MapSet mapFiles = new MapSet(new TreeSet<ImgFileBag>(
+			FILE_COMPARATOR));
 
 	private final ImgContext imgContext;
 
@@ -75,30 +93,117 @@ public class ImgFilesBag {
 	public ImgFilesBag(ImgContext imgContext) {
 
 		this.imgContext = imgContext;
+		this.fileHandles = new ImgFileHandles(imgContext, MAX_OPEN_FILES);
 	}
 
 	/**
 	 * Add a single .img file to the repository.
 	 */
-	public synchronized void addFile(File file, boolean fullInit,
+	public void addFile(File file, boolean fullInit,
 			SubFileReader subFileReader) throws IOException {
 		ImgFileBagExtractor extractor = new ImgFileBagExtractor(file, this,
 				subFileReader);
 		List<ImgFileBag> toAdd = extractor.createImgFileBags(fullInit);
 		if (toAdd.size() > 0) {
-			mapFiles.addAll(toAdd);
+			synchronized (this) {
+				mapFiles = mapFiles.with(toAdd);
+			}
 		}
 	}
 
+	/**
+	 * Add several .img files, parsed in parallel.
+	 * 
+	 * @see #addFiles(Collection, boolean, SubFileReader, Executor,
+	 *      FilesLoadingListener)
+	 */
+	public Map<File, Exception> addFiles(Collection<File> files,
+			Executor executor) throws InterruptedException {
+		return addFiles(files, true, null, executor, null);
+	}
+
+	/**
+	 * Add several .img files. The files are parsed in parallel by the given
+	 * executor and their maps are added all at once when every files are done.
+	 * A file that cannot be parsed doesn't prevent the others to be added. If
+	 * it fails part-way, the maps read before the error are added, like with
+	 * {@link #addFile(File, boolean, SubFileReader)}.
+	 * 
+	 * @param listener
+	 *            Notified after each file, can be null.
+	 * @return The files that could not be parsed, with the reason, in the
+	 *         order of the given collection.
+	 */
+	public Map<File, Exception> addFiles(Collection<File> files,
+			final boolean fullInit, final SubFileReader subFileReader,
+			Executor executor, final FilesLoadingListener listener)
+			throws InterruptedException {
+		final File[] toLoad = files.toArray(new File[0]);
+		final List<List<ImgFileBag>> loaded = new ArrayList<List<ImgFileBag>>(
+				Collections.<List<ImgFileBag>> nCopies(toLoad.length, null));
+		final Exception[] errors = new Exception[toLoad.length];
+		final AtomicInteger nbDone = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(toLoad.length);
+		for (int cpt = 0; cpt < toLoad.length; ++cpt) {
+			final int pos = cpt;
+			Runnable task = new Runnable() {
+				public void run() {
+					try {
+						List<ImgFileBag> maps = new ArrayList<ImgFileBag>();
+						try {
+							new ImgFileBagExtractor(toLoad[pos],
+									ImgFilesBag.this, subFileReader)
+									.extractImgFileBags(maps, fullInit);
+						} catch (Exception e) {
+							errors[pos] = e;
+						}
+						// the maps read before an error too, like addFile
+						loaded.set(pos, maps);
+						if (listener != null) {
+							if (errors[pos] == null)
+								listener.fileLoaded(toLoad[pos], maps.size(),
+										nbDone.incrementAndGet(), toLoad.length);
+							else
+								listener.fileFailed(toLoad[pos], errors[pos],
+										nbDone.incrementAndGet(), toLoad.length);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RuntimeException e) {
+				errors[pos] = e;
+				done.countDown();
+			}
+		}
+		done.await();
+
+		// sorted beforehand, the insertion in an empty set is linear
+		TreeSet<ImgFileBag> toAdd = new TreeSet<ImgFileBag>(FILE_COMPARATOR);
+		Map<File, Exception> failures = new LinkedHashMap<File, Exception>();
+		for (int cpt = 0; cpt < toLoad.length; ++cpt) {
+			if (loaded.get(cpt) != null)
+				toAdd.addAll(loaded.get(cpt));
+			if (errors[cpt] != null)
+				failures.put(toLoad[cpt], errors[cpt]);
+		}
+		synchronized (this) {
+			mapFiles = mapFiles.with(toAdd);
+		}
+		return failures;
+	}
+
 	/**
 	 * Remove every maps.
 	 */
 	public synchronized void clear() throws IOException {
-		mapFiles.clear();
-		for (ImgFileBag openFile : openFiles) {
-			openFile.close();
-		}
-		openFiles.clear();
+		mapFiles = new MapSet(new TreeSet<ImgFileBag>(FILE_COMPARATOR));
+		fileHandles.closeAll();
+		imgContext.getBlocCache().clear();
+		imgContext.getGeometryCache().clear();
 	}
 
 	/**
@@ -117,12 +222,14 @@ public class ImgFilesBag {
 	 *            possible values).
 	 * @see #readMap(int,int,int,int,int,int,BitSet,MapListener)
 	 */
-	public synchronized void readMapForDrawing(int minLong, int maxLong,
-			int minLat, int maxLat, int resolution, int objectKindFilter,
+	public void readMapForDrawing(int minLong, int maxLong, int minLat,
+			int maxLat, int resolution, int objectKindFilter,
 			MapListener listener) throws IOException {
-		if (!mapFiles.isEmpty()) {
+		MapSet maps = mapFiles;
+		if (!maps.files.isEmpty()) {
 			readMapForDrawing(minLong, maxLong, minLat, maxLat, resolution,
-					listener, mapFiles, objectKindFilter);
+					listener, maps.getIndex().query(minLong, maxLong, minLat,
+							maxLat), objectKindFilter);
 		}
 		listener.finishPainting();
 	}
@@ -145,30 +252,108 @@ public class ImgFilesBag {
 	 * @see org.free.garminimg.MapListener
 	 * @see org.free.garminimg.ObjectKind
 	 */
-	public synchronized void readMap(int minLong, int maxLong, int minLat,
-			int maxLat, int resolution, int objectKindFilter,
-			BitSet objectTypeFilter, MapListener listener) throws IOException {
+	public void readMap(int minLong, int maxLong, int minLat, int maxLat,
+			int resolution, int objectKindFilter, BitSet objectTypeFilter,
+			MapListener listener) throws IOException {
 		readMap(minLong, maxLong, minLat, maxLat, resolution, objectKindFilter,
-				objectTypeFilter, listener, mapFiles);
+				objectTypeFilter, listener, mapFiles.getIndex().query(minLong,
+						maxLong, minLat, maxLat));
+	}
+
+	/**
+	 * Same as
+	 * {@link #readMapForDrawing(int, int, int, int, int, int, MapListener)},
+	 * but the sub-divisions are decoded in parallel by the given pool. The
+	 * listener receives the same calls in the same order, all from the
+	 * calling thread, so it doesn't need to be thread safe.
+	 */
+	public void readMapForDrawing(int minLong, int maxLong, int minLat,
+			int maxLat, int resolution, int objectKindFilter,
+			MapListener listener, ForkJoinPool pool) throws IOException {
+		MapSet maps = mapFiles;
+		if (!maps.files.isEmpty()) {
+			ParallelRead read = new ParallelRead(minLong, maxLong, minLat,
+					maxLat, resolution, maps.getIndex().query(minLong,
+							maxLong, minLat, maxLat));
+			DrawingLayers[] outputs = new DrawingLayers[read.getNbUnits()];
+			for (int cpt = 0; cpt < outputs.length; ++cpt) {
+				outputs[cpt] = new DrawingLayers(objectKindFilter);
+			}
+			if (outputs.length > 0) {
+				read.decode(pool, outputs[0].getObjectKindFilter(), null,
+						outputs);
+			}
+			int nbLayers = DrawingLayers.getNbLayers(objectKindFilter);
+			for (int layer = 0; layer < nbLayers; ++layer) {
+				read.replay(listener, outputs, layer);
+			}
+		}
+		listener.finishPainting();
+	}
+
+	/**
+	 * Same as
+	 * {@link #readMap(int, int, int, int, int, int, BitSet, MapListener)},
+	 * but the sub-divisions are decoded in parallel by the given pool. The
+	 * listener receives the same calls in the same order, all from the
+	 * calling thread, so it doesn't need to be thread safe.
+	 */
+	public void readMap(int minLong, int maxLong, int minLat, int maxLat,
+			int resolution, int objectKindFilter, BitSet objectTypeFilter,
+			MapListener listener, ForkJoinPool pool) throws IOException {
+		ParallelRead read = new ParallelRead(minLong, maxLong, minLat, maxLat,
+				resolution, mapFiles.getIndex().query(minLong, maxLong, minLat,
+						maxLat));
+		MapEventBuffer[] outputs = new MapEventBuffer[read.getNbUnits()];
+		for (int cpt = 0; cpt < outputs.length; ++cpt) {
+			outputs[cpt] = new MapEventBuffer();
+		}
+		read.decode(pool, objectKindFilter, objectTypeFilter, outputs);
+		read.replay(listener, outputs, -1);
+	}
+
+	/**
+	 * Find the objects by name, through the name index of each map (see
+	 * {@link ImgFileBag#getNameIndex()}). Only the sub-divisions containing
+	 * matching objects are decoded. The case, the accents and the spaces are
+	 * ignored.
+	 * 
+	 * @param prefix
+	 *            True if the names must start with the text, false if they
+	 *            must contain it.
+	 * @see org.free.garminimg.utils.FindObjectByNameListener
+	 */
+	public void findByName(String text, boolean prefix, MapListener listener)
+			throws IOException {
+		MapSet maps = mapFiles;
+		for (ImgFileBag map : maps.files) {
+			NameIndex index = map.getNameIndex();
+			List<NameIndex.Match> matches = prefix ? index.findPrefix(text)
+					: index.findSubstring(text);
+			index.readObjects(matches, listener);
+		}
+		listener.finishPainting();
 	}
 
-	public synchronized int[] getAproxGMapslevel() {
+	public int[] getAproxGMapslevel() {
 
 		int TILE_S = 512;
 		int numTeselas = 0;
 		double maxLat = Double.MAX_VALUE;
 		double minLat = Double.MAX_VALUE;
 
+		MapSet maps = mapFiles;
 		try {
-			if (mapFiles.size() > 0) {
-				for (ImgFileBag img : mapFiles) {
+			if (maps.files.size() > 0) {
+				for (ImgFileBag img : maps.files) {
 					int n = img.getNorthBoundary();
 					int s = img.getSouthBoundary();
 					int w = img.getWestBoundary();
 					int e = img.getEastBoundary();
-					int num0 = (getMaxLatitude() - getMinLatitude()) / (n - s);
-					int num1 = (getMaxLongitude() - getMinLongitude())
-							/ (e - w);
+					int num0 = (maps.getMaxLatitude() - maps.getMinLatitude())
+							/ (n - s);
+					int num1 = (maps.getMaxLongitude() - maps
+							.getMinLongitude()) / (e - w);
 					int num = Math.max(num0, num1);
 					if (num > numTeselas) {
 						numTeselas = num;
@@ -198,59 +383,24 @@ public class ImgFilesBag {
 		}
 	}
 
-	public synchronized int getMinLongitude() throws IOException {
-
-		if (minLon != Integer.MAX_VALUE)
-			return minLon;
-		if (mapFiles.size() > 0)
-			for (ImgFileBag file : mapFiles) {
-				minLon = Math.min(minLon, file.getWestBoundary());
-			}
-		return minLon;
+	public int getMinLongitude() throws IOException {
+		return mapFiles.getMinLongitude();
 	}
 
-	public synchronized int getMaxLongitude() throws IOException {
-		if (maxLon != Integer.MIN_VALUE)
-			return maxLon;
-		if (mapFiles.size() > 0)
-			for (ImgFileBag file : mapFiles) {
-				maxLon = Math.max(maxLon, file.getEastBoundary());
-			}
-		return maxLon;
+	public int getMaxLongitude() throws IOException {
+		return mapFiles.getMaxLongitude();
 	}
 
-	public synchronized int getMinLatitude() throws IOException {
-		if (minLat != Integer.MAX_VALUE)
-			return minLat;
-		if (mapFiles.size() > 0)
-			for (ImgFileBag file : mapFiles) {
-				minLat = Math.min(minLat, file.getSouthBoundary());
-			}
-		return minLat;
+	public int getMinLatitude() throws IOException {
+		return mapFiles.getMinLatitude();
 	}
 
-	public synchronized int getMaxLatitude() throws IOException {
-		if (maxLat != Integer.MIN_VALUE)
-			return maxLat;
-		if (mapFiles.size() > 0)
-			for (ImgFileBag file : mapFiles) {
-				maxLat = Math.max(maxLat, file.getNorthBoundary());
-			}
-
-		return maxLat;
+	public int getMaxLatitude() throws IOException {
+		return mapFiles.getMaxLatitude();
 	}
 
-	synchronized void registerOpenFile(ImgFileBag bag) throws IOException {
-		int cpt = 0;
-		while (openFiles.size() >= MAX_OPEN_FILES && cpt < openFiles.size()) {
-			ImgFileBag toClose = openFiles.remove(0);
-			if (!toClose.close()) { // failed (was in use), retry with another
-									// one
-				openFiles.add(toClose);
-			}
-			++cpt;
-		}
-		openFiles.add(bag);
+	ImgFileHandles getFileHandles() {
+		return fileHandles;
 	}
 
 	private int latToY(double lat, int worldSize) {
@@ -263,7 +413,7 @@ public class ImgFilesBag {
 
 	private void readMap(int minLong, int maxLong, int minLat, int maxLat,
 			int resolution, int objectKindFilter, BitSet objectTypeFilter,
-			MapListener listener, SortedSet<ImgFileBag> files)
+			MapListener listener, List<ImgFileBag> files)
 			throws IOException {
 		for (ImgFileBag file : files) {
 			file.readMap(minLong, maxLong, minLat, maxLat, resolution,
@@ -273,129 +423,469 @@ public class ImgFilesBag {
 
 	private void readMapForDrawing(int minLong, int maxLong, int minLat,
 			int maxLat, int resolution, MapListener listener,
-			SortedSet<ImgFileBag> files, int objectKindFilter)
+			List<ImgFileBag> files, int objectKindFilter)
 			throws IOException {
-		// it's very important to read polygons first, to avoid hiding other
-		// objects.
-		if ((objectKindFilter & ObjectKind.POLYGON) != 0) {
-			// first, the map background
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.POLYGON, getMapBackgroundFilter(), listener,
-					files);
-
-			// then, the city limits
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.POLYGON, getMapCityFilter(), listener, files);
-
-			// then, the definition of small zones
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.POLYGON, getMapZonesFilter(), listener, files);
-
-			// then, the forests
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.POLYGON, getMapForestFilter(), listener, files);
-
-			// finally, the rest
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.POLYGON, getMapOthersFilter(), listener, files);
-		}
-
-		// otros poligonos
-		if ((objectKindFilter & ObjectKind.EXTENDED_POLYGON) != 0) {
-			readMap(minLong, maxLong, minLat, maxLat, resolution,
-					ObjectKind.EXTENDED_POLYGON, null, listener, files);
-		}
-
-		// lines and points can be read in any order.
-		if ((objectKindFilter ^ (ObjectKind.POLYGON | ObjectKind.EXTENDED_POLYGON)) != 0)
-			readMap(minLong,
-					maxLong,
-					minLat,
-					maxLat,
-					resolution,
-					(ObjectKind.ALL ^ (ObjectKind.POLYGON | ObjectKind.EXTENDED_POLYGON))
-							& objectKindFilter, null, listener, files);
+		// every sub-division is decoded once, the objects are sorted in
+		// layers and sent in the drawing order at the end
+		DrawingLayers layers = new DrawingLayers(objectKindFilter);
+		for (ImgFileBag file : files) {
+			file.readMap(minLong, maxLong, minLat, maxLat, resolution,
+					layers.getObjectKindFilter(), null, layers);
+		}
+		layers.replay(listener);
 	}
 
-	private static BitSet getMapBackgroundFilter() {
-		if (mapBackgroundFilter == null) {
-			mapBackgroundFilter = new BitSet(0xB + 1);
-			mapBackgroundFilter.set(ImgConstants.BACKGROUND);
-			mapBackgroundFilter.set(ImgConstants.DEFINITION_AREA);
+	/**
+	 * Sorts the objects in the order that is suitable for drawing. Each layer
+	 * receives the same events as a read with its own filter would produce,
+	 * including the calls to startMap and startSubDivision. An object
+	 * matching several layers is in each of them.
+	 */
+	private static class DrawingLayers implements LabelHandleListener {
+
+		/**
+		 * It's very important to draw polygons first, to avoid hiding other
+		 * objects: first, the map background, then the city limits, the
+		 * definition of small zones, the forests and finally, the rest.
+		 */
+		private static final BitSet[] POLYGON_FILTERS = {
+				MAP_BACKGROUND_FILTER, MAP_CITY_FILTER, MAP_ZONES_FILTER,
+				MAP_FOREST_FILTER, MAP_OTHERS_FILTER };
+
+		private final MapEventBuffer[] polygonLayers;
+
+		private final MapEventBuffer extendedPolygonLayer;
+
+		/**
+		 * Lines and points, which can be drawn in any order.
+		 */
+		private final MapEventBuffer otherLayer;
+
+		/**
+		 * All the layers in use, in the drawing order.
+		 */
+		private final MapEventBuffer[] layers;
+
+		private final int objectKindFilter;
+
+		public DrawingLayers(int objectKindFilter) {
+			List<MapEventBuffer> used = new ArrayList<MapEventBuffer>();
+			int kinds = 0;
+			if ((objectKindFilter & ObjectKind.POLYGON) != 0) {
+				polygonLayers = new MapEventBuffer[POLYGON_FILTERS.length];
+				for (int cpt = 0; cpt < polygonLayers.length; ++cpt) {
+					polygonLayers[cpt] = new MapEventBuffer();
+					used.add(polygonLayers[cpt]);
+				}
+				kinds |= ObjectKind.POLYGON;
+			} else {
+				polygonLayers = null;
+			}
+			if ((objectKindFilter & ObjectKind.EXTENDED_POLYGON) != 0) {
+				extendedPolygonLayer = new MapEventBuffer();
+				used.add(extendedPolygonLayer);
+				kinds |= ObjectKind.EXTENDED_POLYGON;
+			} else {
+				extendedPolygonLayer = null;
+			}
+			if ((objectKindFilter ^ (ObjectKind.POLYGON | ObjectKind.EXTENDED_POLYGON)) != 0) {
+				otherLayer = new MapEventBuffer();
+				used.add(otherLayer);
+				kinds |= (ObjectKind.ALL ^ (ObjectKind.POLYGON | ObjectKind.EXTENDED_POLYGON))
+						& objectKindFilter;
+			} else {
+				otherLayer = null;
+			}
+			this.layers = used.toArray(new MapEventBuffer[used.size()]);
+			this.objectKindFilter = kinds;
+		}
+
+		/**
+		 * @return The kinds of objects to decode for all the layers.
+		 */
+		public int getObjectKindFilter() {
+			return objectKindFilter;
+		}
+
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, Label label, boolean indexed) {
+			otherLayer.addPoint(type, subType, longitude, latitude, label,
+					indexed);
+		}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, Label label, boolean line) {
+			MapEventBuffer layer = getPolyLayer(type, line);
+			if (layer != null) {
+				layer.addPoly(type, longitudes, latitudes, nbPoints, label,
+						line);
+			} else {
+				for (int cpt = 0; cpt < POLYGON_FILTERS.length; ++cpt) {
+					if (POLYGON_FILTERS[cpt].get(type))
+						polygonLayers[cpt].addPoly(type, longitudes,
+								latitudes, nbPoints, label, line);
+				}
+			}
 		}
-		return mapBackgroundFilter;
-	}
 
-	private static BitSet mapForestFilter = null;
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, long label, boolean indexed) {
+			otherLayer.addPoint(type, subType, longitude, latitude, label,
+					indexed);
+		}
 
-	private static BitSet getMapForestFilter() {
-		if (mapForestFilter == null) {
-			mapForestFilter = new BitSet(ImgConstants.FOREST + 1);
-			mapForestFilter.set(0x0E);
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, long label, boolean line) {
+			MapEventBuffer layer = getPolyLayer(type, line);
+			if (layer != null) {
+				layer.addPoly(type, longitudes, latitudes, nbPoints, label,
+						line);
+			} else {
+				for (int cpt = 0; cpt < POLYGON_FILTERS.length; ++cpt) {
+					if (POLYGON_FILTERS[cpt].get(type))
+						polygonLayers[cpt].addPoly(type, longitudes,
+								latitudes, nbPoints, label, line);
+				}
+			}
+		}
 
-			mapForestFilter.set(0x14);
-			mapForestFilter.set(0x15);
-			mapForestFilter.set(0x16);
-			mapForestFilter.set(0x17);
-			mapForestFilter.set(0x18);
+		/**
+		 * @return The layer of a poly, null if it's a standard polygon that
+		 *         goes in the layers of the filters it matches.
+		 */
+		private MapEventBuffer getPolyLayer(int type, boolean line) {
+			if (line)
+				return otherLayer;
+			if (type > 0xFF)
+				// the types of the extended polygons include their prefix
+				return extendedPolygonLayer;
+			return null;
+		}
 
-			mapForestFilter.set(0x1E);
-			mapForestFilter.set(0x1F);
-			mapForestFilter.set(0x20);
+		public void startMap(ImgFileBag file) {
+			for (MapEventBuffer layer : layers) {
+				layer.startMap(file);
+			}
+		}
 
-			mapForestFilter.set(0x50);
-			mapForestFilter.set(0x53);
-			mapForestFilter.set(ImgConstants.FOREST);
+		public void startSubDivision(SubDivision subDivision) {
+			for (MapEventBuffer layer : layers) {
+				layer.startSubDivision(subDivision);
+			}
 		}
-		return mapForestFilter;
-	}
 
-	private static BitSet mapCityFilter = null;
+		public void finishPainting() {
+		}
 
-	private static BitSet getMapCityFilter() {
-		if (mapCityFilter == null) {
-			mapCityFilter = new BitSet(0x03 + 1);
+		public void replay(MapListener listener) {
+			for (MapEventBuffer layer : layers) {
+				layer.replay(listener);
+			}
+		}
 
-			mapCityFilter.set(0x01);
-			mapCityFilter.set(0x02);
-			mapCityFilter.set(0x03);
+		/**
+		 * @return The number of layers used for the given kinds of objects.
+		 */
+		public static int getNbLayers(int objectKindFilter) {
+			int result = 0;
+			if ((objectKindFilter & ObjectKind.POLYGON) != 0)
+				result += POLYGON_FILTERS.length;
+			if ((objectKindFilter & ObjectKind.EXTENDED_POLYGON) != 0)
+				result++;
+			if ((objectKindFilter ^ (ObjectKind.POLYGON | ObjectKind.EXTENDED_POLYGON)) != 0)
+				result++;
+			return result;
+		}
 
+		public void replay(int layer, MapListener listener) {
+			layers[layer].replay(listener);
 		}
-		return mapCityFilter;
 	}
 
-	private static BitSet getMapZonesFilter() {
-		if (mapZonesFilter == null) {
-			mapZonesFilter = new BitSet(ImgConstants.GRAVEL_AREA + 1);
+	/**
+	 * A read whose sub-divisions (the units) are decoded in parallel, each in
+	 * its own output, then sent to the listener in the order of a serial
+	 * read.
+	 */
+	private static class ParallelRead {
+
+		private final List<ImgFileBag> files = new ArrayList<ImgFileBag>();
+
+		/**
+		 * For each map of files, the index of its first unit. One more
+		 * element for the end of the last one.
+		 */
+		private final int[] firstUnits;
+
+		private final List<ImgFileBag> unitFiles = new ArrayList<ImgFileBag>();
+
+		private final List<SubDivision> unitSubDivisions = new ArrayList<SubDivision>();
+
+		public ParallelRead(int minLong, int maxLong, int minLat, int maxLat,
+				int resolution, List<ImgFileBag> candidates) throws IOException {
+			int[] starts = new int[candidates.size() + 1];
+			for (ImgFileBag file : candidates) {
+				List<SubDivision> subDivisions = file.findSubDivisions(
+						minLong, maxLong, minLat, maxLat, resolution);
+				if (subDivisions != null) {
+					starts[files.size()] = unitFiles.size();
+					files.add(file);
+					for (SubDivision subDivision : subDivisions) {
+						unitFiles.add(file);
+						unitSubDivisions.add(subDivision);
+					}
+				}
+			}
+			starts[files.size()] = unitFiles.size();
+			firstUnits = starts;
+		}
 
-			mapZonesFilter.set(0x07);
-			mapZonesFilter.set(0x0C);
-			mapZonesFilter.set(0x0D);
-			mapZonesFilter.set(0x0E);
-			mapZonesFilter.set(0x0F);
-			mapZonesFilter.set(0x11);
-			mapZonesFilter.set(0x19);
-			mapZonesFilter.set(0x1A);
-			mapZonesFilter.set(0x4E);
-			mapZonesFilter.set(0x4F);
+		public int getNbUnits() {
+			return unitFiles.size();
+		}
 
-			mapZonesFilter.set(ImgConstants.STATION_AREA);
-			mapZonesFilter.set(ImgConstants.GRAVEL_AREA);
+		/**
+		 * Decode every unit in the output of the same index.
+		 */
+		public void decode(ForkJoinPool pool, int objectKindFilter,
+				BitSet objectTypeFilter, MapListener[] outputs)
+				throws IOException {
+			AtomicReference<IOException> error = new AtomicReference<IOException>();
+			pool.invoke(new DecodeTask(this, objectKindFilter,
+					objectTypeFilter, outputs, error, 0, outputs.length));
+			if (error.get() != null)
+				throw error.get();
+		}
 
+		/**
+		 * Send the outputs to the listener, with the calls to startMap a
+		 * serial read would do.
+		 * 
+		 * @param layer
+		 *            The layer to send if the outputs are DrawingLayers, -1
+		 *            otherwise.
+		 */
+		public void replay(MapListener listener, MapListener[] outputs,
+				int layer) {
+			for (int cpt = 0; cpt < files.size(); ++cpt) {
+				listener.startMap(files.get(cpt));
+				for (int unit = firstUnits[cpt]; unit < firstUnits[cpt + 1]; ++unit) {
+					if (layer < 0)
+						((MapEventBuffer) outputs[unit]).replay(listener);
+					else
+						((DrawingLayers) outputs[unit]).replay(layer, listener);
+				}
+			}
 		}
-		return mapZonesFilter;
+
+		private static class DecodeTask extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * Number of units under which a task is not split anymore.
+			 */
+			private static final int MAX_UNITS = 4;
+
+			private final ParallelRead read;
+
+			private final int objectKindFilter;
+
+			private final BitSet objectTypeFilter;
+
+			private final MapListener[] outputs;
+
+			private final AtomicReference<IOException> error;
+
+			private final int from;
+
+			private final int to;
+
+			public DecodeTask(ParallelRead read, int objectKindFilter,
+					BitSet objectTypeFilter, MapListener[] outputs,
+					AtomicReference<IOException> error, int from, int to) {
+				this.read = read;
+				this.objectKindFilter = objectKindFilter;
+				this.objectTypeFilter = objectTypeFilter;
+				this.outputs = outputs;
+				this.error = error;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from > MAX_UNITS) {
+					int middle = (from + to) >>> 1;
+					invokeAll(new DecodeTask(read, objectKindFilter,
+							objectTypeFilter, outputs, error, from, middle),
+							new DecodeTask(read, objectKindFilter,
+									objectTypeFilter, outputs, error, middle,
+									to));
+					return;
+				}
+				RgnContext rgnContext = new RgnContext();
+				for (int unit = from; unit < to && error.get() == null; ++unit) {
+					SubDivision subDivision = read.unitSubDivisions.get(unit);
+					outputs[unit].startSubDivision(subDivision);
+					try {
+						read.unitFiles.get(unit).parseSubDivision(subDivision,
+								objectKindFilter, objectTypeFilter,
+								outputs[unit], rgnContext);
+					} catch (IOException e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			}
+		}
+	}
+
+	private static BitSet createMapBackgroundFilter() {
+		BitSet result = new BitSet(0xB + 1);
+		result.set(ImgConstants.BACKGROUND);
+		result.set(ImgConstants.DEFINITION_AREA);
+		return result;
+	}
+
+	private static BitSet createMapForestFilter() {
+		BitSet result = new BitSet(ImgConstants.FOREST + 1);
+		result.set(0x0E);
+
+		result.set(0x14);
+		result.set(0x15);
+		result.set(0x16);
+		result.set(0x17);
+		result.set(0x18);
+
+		result.set(0x1E);
+		result.set(0x1F);
+		result.set(0x20);
+
+		result.set(0x50);
+		result.set(0x53);
+		result.set(ImgConstants.FOREST);
+		return result;
+	}
+
+	private static BitSet createMapCityFilter() {
+		BitSet result = new BitSet(0x03 + 1);
+
+		result.set(0x01);
+		result.set(0x02);
+		result.set(0x03);
+		return result;
+	}
+
+	private static BitSet createMapZonesFilter() {
+		BitSet result = new BitSet(ImgConstants.GRAVEL_AREA + 1);
+
+		result.set(0x07);
+		result.set(0x0C);
+		result.set(0x0D);
+		result.set(0x0E);
+		result.set(0x0F);
+		result.set(0x11);
+		result.set(0x19);
+		result.set(0x1A);
+		result.set(0x4E);
+		result.set(0x4F);
+
+		result.set(ImgConstants.STATION_AREA);
+		result.set(ImgConstants.GRAVEL_AREA);
+		return result;
 	}
 
-	private static BitSet getMapOthersFilter() {
-		if (mapOthersFilter == null) {
-			mapOthersFilter = new BitSet(512);
-			mapOthersFilter.or(mapBackgroundFilter);
-			mapOthersFilter.or(mapForestFilter);
-			mapOthersFilter.or(mapCityFilter);
-			mapOthersFilter.flip(0, mapOthersFilter.length() - 1);
+	private static BitSet createMapOthersFilter() {
+		BitSet result = new BitSet(512);
+		result.or(MAP_BACKGROUND_FILTER);
+		result.or(MAP_FOREST_FILTER);
+		result.or(MAP_CITY_FILTER);
+		result.flip(0, result.length() - 1);
+		return result;
+	}
+
+	/**
+	 * Immutable set of maps, with what is computed from it.
+	 */
+	private static class MapSet {
+
+		final SortedSet<ImgFileBag> files;
+
+		/**
+		 * Built when needed. Can be built twice by concurrent readers, which
+		 * is harmless.
+		 */
+		private volatile MapIndex index;
+
+		private volatile int maxLat = Integer.MIN_VALUE,
+				maxLon = Integer.MIN_VALUE, minLat = Integer.MAX_VALUE,
+				minLon = Integer.MAX_VALUE;
+
+		MapSet(TreeSet<ImgFileBag> files) {
+			this.files = Collections.unmodifiableSortedSet(files);
+		}
+
+		/**
+		 * @return A copy of this set with the given maps added.
+		 */
+		MapSet with(Collection<ImgFileBag> toAdd) {
+			TreeSet<ImgFileBag> copy = new TreeSet<ImgFileBag>(files);
+			copy.addAll(toAdd);
+			return new MapSet(copy);
+		}
 
+		MapIndex getIndex() throws IOException {
+			MapIndex result = index;
+			if (result == null) {
+				result = new MapIndex(files);
+				index = result;
+			}
+			return result;
+		}
+
+		int getMinLongitude() throws IOException {
+			if (minLon == Integer.MAX_VALUE) {
+				int result = Integer.MAX_VALUE;
+				for (ImgFileBag file : files) {
+					result = Math.min(result, file.getWestBoundary());
+				}
+				minLon = result;
+			}
+			return minLon;
+		}
+
+		int getMaxLongitude() throws IOException {
+			if (maxLon == Integer.MIN_VALUE) {
+				int result = Integer.MIN_VALUE;
+				for (ImgFileBag file : files) {
+					result = Math.max(result, file.getEastBoundary());
+				}
+				maxLon = result;
+			}
+			return maxLon;
+		}
+
+		int getMinLatitude() throws IOException {
+			if (minLat == Integer.MAX_VALUE) {
+				int result = Integer.MAX_VALUE;
+				for (ImgFileBag file : files) {
+					result = Math.min(result, file.getSouthBoundary());
+				}
+				minLat = result;
+			}
+			return minLat;
+		}
+
+		int getMaxLatitude() throws IOException {
+			if (maxLat == Integer.MIN_VALUE) {
+				int result = Integer.MIN_VALUE;
+				for (ImgFileBag file : files) {
+					result = Math.max(result, file.getNorthBoundary());
+				}
+				maxLat = result;
+			}
+			return maxLat;
 		}
-		return mapOthersFilter;
 	}
 
 	private static class FileComparator implements Comparator<ImgFileBag> {
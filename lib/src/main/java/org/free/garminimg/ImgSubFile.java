@@ -19,8 +19,11 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * One sub-file within a .img file.
@@ -108,6 +111,14 @@ public abstract class ImgSubFile {
 		return filetype;
 	}
 
+	public long getBlocSize() {
+		return blocSize;
+	}
+
+	public int getInitialOffset() {
+		return initialOffset;
+	}
+
 	protected int getHeaderLength() {
 		return headerLength;
 	}
@@ -159,7 +170,7 @@ public abstract class ImgSubFile {
 	}
 
 	public String readString(int len, FileContext context) throws IOException {
-		StringBuffer result = new StringBuffer(len);
+		StringBuilder result = new StringBuilder(len);
 		for (int cpt = 0; cpt < len; ++cpt)
 			result.append(readByte(context));
 		return result.toString();
@@ -167,9 +178,15 @@ public abstract class ImgSubFile {
 
 	public byte[] readBytes(int len, FileContext context) throws IOException {
 		byte[] res = new byte[len];
-		for (int i = 0; i < len; i++) {
-			res[i] = (byte) (context.curBlocContent[context.curPosInBloc++] & 0xFF);
-			context.curPos++;
+		int done = 0;
+		while (done < len) {
+			int toCopy = (int) Math.min(len - done, blocSize
+					- context.curPosInBloc);
+			System.arraycopy(context.curBlocContent, context.curPosInBloc,
+					res, done, toCopy);
+			done += toCopy;
+			context.curPosInBloc += toCopy;
+			context.curPos += toCopy;
 			if (context.curPosInBloc >= blocSize) {
 				seek(context.curPos, context);
 			}
@@ -177,20 +194,109 @@ public abstract class ImgSubFile {
 		return res;
 	}
 
+	/**
+	 * Read the bytes up to the next 0, which is skipped.
+	 * 
+	 * @return The bytes read, without the 0. When they are all in the current
+	 *         bloc, it's a view on the cached bloc: don't modify it.
+	 */
+	public ByteBuffer readZeroTerminated(FileContext context)
+			throws IOException {
+		final byte[] content = context.curBlocContent;
+		final int start = context.curPosInBloc;
+		// stop before the last byte, where readByte would load the next bloc
+		for (int pos = start; pos < blocSize - 1; ++pos) {
+			if (content[pos] == 0) {
+				context.curPosInBloc = pos + 1;
+				context.curPos += pos + 1 - start;
+				return ByteBuffer.wrap(content, start, pos - start);
+			}
+		}
+		byte[] result = new byte[64];
+		int length = 0;
+		while (true) {
+			int cur = readByte(context);
+			if (cur == 0)
+				return ByteBuffer.wrap(result, 0, length);
+			if (length == result.length) {
+				byte[] bigger = new byte[length * 2];
+				System.arraycopy(result, 0, bigger, 0, length);
+				result = bigger;
+			}
+			result[length++] = (byte) cur;
+		}
+	}
+
+	/*
+	 * The multi-bytes readers decode the little-endian value directly from
+	 * the current bloc when it is entirely inside it (and doesn't end on its
+	 * last byte, where readByte would load the next bloc). Otherwise they
+	 * fall back to readByte.
+	 */
+
 	public int readUInt16(FileContext context) throws IOException {
+		final int pos = context.curPosInBloc;
+		if (pos + 2 < blocSize) {
+			final byte[] content = context.curBlocContent;
+			context.curPosInBloc = pos + 2;
+			context.curPos += 2;
+			return (content[pos] & 0xFF) | (content[pos + 1] & 0xFF) << 8;
+		}
 		return readByte(context) | readByte(context) << 8;
 	}
 
 	public int readUInt24(FileContext context) throws IOException {
+		final int pos = context.curPosInBloc;
+		if (pos + 3 < blocSize) {
+			final byte[] content = context.curBlocContent;
+			context.curPosInBloc = pos + 3;
+			context.curPos += 3;
+			return (content[pos] & 0xFF) | (content[pos + 1] & 0xFF) << 8
+					| (content[pos + 2] & 0xFF) << 16;
+		}
 		return readByte(context) | readByte(context) << 8
 				| readByte(context) << 16;
 	}
 
+	/**
+	 * Careful: as always done, the value is computed as an int, so it is
+	 * negative if the MSB is set.
+	 */
 	public long readUInt32(FileContext context) throws IOException {
+		final int pos = context.curPosInBloc;
+		if (pos + 4 < blocSize) {
+			final byte[] content = context.curBlocContent;
+			context.curPosInBloc = pos + 4;
+			context.curPos += 4;
+			return (content[pos] & 0xFF) | (content[pos + 1] & 0xFF) << 8
+					| (content[pos + 2] & 0xFF) << 16
+					| (content[pos + 3] & 0xFF) << 24;
+		}
 		return readByte(context) | readByte(context) << 8
 				| readByte(context) << 16 | readByte(context) << 24;
 	}
 
+	/**
+	 * Read nbBytes (at most 8) as a little-endian unsigned value.
+	 */
+	public long readUIntN(int nbBytes, FileContext context) throws IOException {
+		final int pos = context.curPosInBloc;
+		long result = 0;
+		if (pos + nbBytes < blocSize) {
+			final byte[] content = context.curBlocContent;
+			for (int cpt = nbBytes - 1; cpt >= 0; --cpt) {
+				result = (result << 8) | (content[pos + cpt] & 0xFF);
+			}
+			context.curPosInBloc = pos + nbBytes;
+			context.curPos += nbBytes;
+			return result;
+		}
+		for (int cpt = 0; cpt < nbBytes; ++cpt) {
+			result |= (long) readByte(context) << (cpt * 8);
+		}
+		return result;
+	}
+
 	public int readInt16(FileContext context) throws IOException {
 		int result = readUInt16(context);
 		if (result > 0x7FFF) {
@@ -212,4 +318,24 @@ public abstract class ImgSubFile {
 		return firstBloc;
 	}
 
+	/**
+	 * Save what was parsed by {@link #init()} and {@link #fullInit()} in the
+	 * sidecar index.
+	 * 
+	 * @see ImgFileIndex
+	 */
+	void writeIndex(DataOutput out) throws IOException {
+		out.writeInt(firstBloc);
+		out.writeInt(headerLength);
+	}
+
+	/**
+	 * Restore what was saved by {@link #writeIndex(DataOutput)}, replaces the
+	 * calls to {@link #init()} and {@link #fullInit()}.
+	 */
+	void readIndex(DataInput in) throws IOException {
+		firstBloc = in.readInt();
+		headerLength = in.readInt();
+	}
+
 }
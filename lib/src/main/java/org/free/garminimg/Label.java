@@ -48,6 +48,24 @@ public abstract class Label {
 		}
 	}
 
+	/**
+	 * Set the name decoded by a {@link LabelBatch}, unless it was already
+	 * done.
+	 */
+	synchronized void resolved(String name) {
+		if (!initDone) {
+			this.name = name;
+			initDone = true;
+		}
+	}
+
+	/**
+	 * @return True if the name is known, reading it won't do any I/O.
+	 */
+	public boolean isResolved() {
+		return initDone;
+	}
+
 	public String getName() throws IOException {
 		initIfNeeded();
 		return name;
@@ -78,7 +96,7 @@ public abstract class Label {
 		if (file != null)
 			return labelOffset + 31 * file.getFile().hashCode();
 		else
-			return name.hashCode();
+			return getNameNoException().hashCode();
 	}
 
 	public boolean equals(Object o) {
@@ -89,7 +107,8 @@ public abstract class Label {
 			return labelOffset == obj.labelOffset
 					&& file.getFile().equals(obj.file.getFile());
 		else
-			return file == null && obj.file == null && name.equals(obj.name);
+			return file == null && obj.file == null
+					&& getNameNoException().equals(obj.getNameNoException());
 	}
 
 }
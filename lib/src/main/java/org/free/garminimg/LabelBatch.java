@@ -0,0 +1,226 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the names of many labels at once. The labels of each map are sorted
+ * by offset, so the POI records, the NET records and the LBL data are read in
+ * one forward sweep instead of jumping around in the order the labels are
+ * displayed.
+ * <p>
+ * Not thread safe, the labels themselves can be used by other threads in the
+ * meantime.
+ */
+public class LabelBatch {
+
+	private static final String TAG = "LabelBatch";
+
+	private static final int SIMPLE = 0;
+
+	private static final int POI = 1;
+
+	private static final int ROAD = 2;
+
+	private final ArrayList<Label> labels = new ArrayList<Label>();
+
+	/**
+	 * Add a label to decode, ignored if null or already decoded.
+	 */
+	public void add(Label label) {
+		if (label != null && !label.isResolved())
+			labels.add(label);
+	}
+
+	/**
+	 * Add the label of a handle given to a {@link LabelHandleListener}.
+	 * 
+	 * @return The label, to read once {@link #resolve()} is done. Null if
+	 *         there is no label.
+	 */
+	public Label add(ImgFileBag map, long handle) {
+		Label result = map.getLabel(handle);
+		add(result);
+		return result;
+	}
+
+	public int size() {
+		return labels.size();
+	}
+
+	/**
+	 * Decode the names of the labels added since the last call. The labels
+	 * that cannot be decoded are left as they are: their getName() will throw
+	 * the error.
+	 */
+	public void resolve() {
+		Map<ImgFileBag, List<Pending>> byMap = new LinkedHashMap<ImgFileBag, List<Pending>>();
+		ArrayList<Label> others = new ArrayList<Label>();
+		for (int cpt = 0; cpt < labels.size(); ++cpt) {
+			Label label = labels.get(cpt);
+			if (label instanceof ElevationLabel) {
+				// the raw label first, the conversion is done at the end
+				others.add(label);
+				label = ((ElevationLabel) label).getRaw();
+				if (label.isResolved())
+					continue;
+			}
+			int kind;
+			if (label instanceof LineInNetLabel)
+				kind = ROAD;
+			else if (label instanceof POILabel)
+				kind = POI;
+			else if (label instanceof SimpleLabel)
+				kind = SIMPLE;
+			else
+				kind = -1;
+			if (kind < 0 || label.file == null) {
+				others.add(label);
+				continue;
+			}
+			List<Pending> pendings = byMap.get(label.file);
+			if (pendings == null) {
+				pendings = new ArrayList<Pending>();
+				byMap.put(label.file, pendings);
+			}
+			pendings.add(new Pending(label, kind));
+		}
+		labels.clear();
+
+		for (Map.Entry<ImgFileBag, List<Pending>> entry : byMap.entrySet()) {
+			try {
+				resolve(entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				Log.e(TAG, "resolve(), " + e.getMessage());
+			}
+		}
+		for (int cpt = 0; cpt < others.size(); ++cpt) {
+			try {
+				others.get(cpt).getName();
+			} catch (IOException e) {
+				// left to the label, it will throw it again when read
+			}
+		}
+	}
+
+	private static void resolve(ImgFileBag map, List<Pending> pendings)
+			throws IOException {
+		LblSubFile lbl = map.getLblFile();
+		NetSubFile net = map.getNetFile();
+		if (lbl == null)
+			return;
+		LabelCache cache = lbl.getLabelCache();
+
+		// the offsets of the names of the POIs and roads, in the order of
+		// their records
+		Collections.sort(pendings, BY_OFFSET);
+		ImgSubFile.FileContext context = new ImgSubFile.FileContext();
+		ImgSubFile.FileContext netContext = new ImgSubFile.FileContext();
+		for (int cpt = 0; cpt < pendings.size(); ++cpt) {
+			Pending pending = pendings.get(cpt);
+			if (pending.kind == SIMPLE) {
+				pending.nameOffset = pending.offset;
+				continue;
+			}
+			String name = cache.get(pending.getCacheKey());
+			if (name != null) {
+				pending.label.resolved(name);
+			} else if (pending.kind == POI) {
+				try {
+					pending.nameOffset = lbl.getPOILabelOffset(
+							pending.offset, context);
+				} catch (IOException e) {
+					// left to the label
+				}
+			} else if (net != null) {
+				pending.nameOffset = net.getRoadLabelOffset(pending.offset,
+						netContext);
+			}
+		}
+
+		// the names, in the order of the LBL
+		Collections.sort(pendings, BY_NAME_OFFSET);
+		for (int cpt = 0; cpt < pendings.size(); ++cpt) {
+			Pending pending = pendings.get(cpt);
+			if (pending.nameOffset < 0)
+				continue;
+			try {
+				String name = lbl.getLabel(pending.nameOffset, context);
+				if (pending.kind != SIMPLE)
+					name = cache.put(pending.getCacheKey(), name);
+				pending.label.resolved(name);
+			} catch (IOException e) {
+				// left to the label
+			}
+		}
+	}
+
+	private static final Comparator<Pending> BY_OFFSET = new Comparator<Pending>() {
+		public int compare(Pending a, Pending b) {
+			if (a.kind != b.kind)
+				return a.kind - b.kind;
+			return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Pending> BY_NAME_OFFSET = new Comparator<Pending>() {
+		public int compare(Pending a, Pending b) {
+			return a.nameOffset < b.nameOffset ? -1
+					: (a.nameOffset == b.nameOffset ? 0 : 1);
+		}
+	};
+
+	private static class Pending {
+		private final Label label;
+
+		private final int kind;
+
+		/**
+		 * The offset of the label: in the LBL data, in the POI records or in
+		 * the NET records.
+		 */
+		private final long offset;
+
+		/**
+		 * The offset of the name in the LBL data, -1 if unknown.
+		 */
+		private long nameOffset = -1;
+
+		public Pending(Label label, int kind) {
+			this.label = label;
+			this.kind = kind;
+			this.offset = label.labelOffset;
+		}
+
+		public long getCacheKey() {
+			return (kind == POI ? LblSubFile.POI_NAMES
+					: LblSubFile.ROAD_NAMES) | offset;
+		}
+	}
+}
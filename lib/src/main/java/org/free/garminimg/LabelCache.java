@@ -0,0 +1,198 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the names decoded from one LBL sub-file, by offset.
+ * <p>
+ * The same names (streets, contour lines) are displayed by many objects of a
+ * tile, they are decoded only once. The equal names found at different
+ * offsets are kept as one String. Once the maximum number of entries is
+ * exceeded, they are evicted with the CLOCK algorithm, like in the
+ * {@link BlocCache}.
+ * <p>
+ * Lookups never block, only the insertions are serialized.
+ */
+public class LabelCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+	private final ConcurrentHashMap<Long, Entry> names = new ConcurrentHashMap<Long, Entry>(
+			256);
+
+	/**
+	 * The clock of the cached entries, the head being the hand. Guarded by
+	 * this.
+	 */
+	private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+	/**
+	 * The distinct names cached, with the number of entries using them.
+	 * Guarded by this.
+	 */
+	private final HashMap<String, Interned> interned = new HashMap<String, Interned>();
+
+	private int maxEntries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public LabelCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return The cached name or null if it has to be decoded.
+	 */
+	public String get(long key) {
+		Entry entry = names.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.referenced = true;
+		hits.incrementAndGet();
+		return entry.name.value;
+	}
+
+	/**
+	 * Add a name to the cache.
+	 * 
+	 * @return The name to use: the instance already cached if an equal name
+	 *         is known.
+	 */
+	public synchronized String put(long key, String name) {
+		if (name == null || maxEntries <= 0)
+			return name;
+		Long boxedKey = key;
+		Entry existing = names.get(boxedKey);
+		if (existing != null)
+			return existing.name.value;
+		Interned internedName = interned.get(name);
+		if (internedName == null) {
+			internedName = new Interned(name);
+			interned.put(name, internedName);
+		}
+		internedName.count++;
+		Entry entry = new Entry(boxedKey, internedName);
+		names.put(boxedKey, entry);
+		clock.add(entry);
+		trim();
+		return internedName.value;
+	}
+
+	/**
+	 * Drop every cached names. The counters are kept.
+	 */
+	public synchronized void clear() {
+		names.clear();
+		clock.clear();
+		interned.clear();
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Change the maximum number of entries, dropping names if needed. 0
+	 * disables the cache.
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		trim();
+	}
+
+	public synchronized int getNbEntries() {
+		return clock.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized String toString() {
+		return "entries=" + clock.size() + "/" + maxEntries + " names="
+				+ interned.size() + " hits=" + hits + " misses=" + misses
+				+ " evictions=" + evictions;
+	}
+
+	private void trim() {
+		while (clock.size() > maxEntries && !clock.isEmpty()) {
+			Entry entry = clock.poll();
+			if (entry.referenced) {
+				// second chance
+				entry.referenced = false;
+				clock.add(entry);
+			} else {
+				names.remove(entry.key);
+				if (--entry.name.count == 0)
+					interned.remove(entry.name.value);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static class Interned {
+		private final String value;
+
+		/**
+		 * Number of entries using this name.
+		 */
+		private int count;
+
+		public Interned(String value) {
+			this.value = value;
+		}
+	}
+
+	private static class Entry {
+		private final Long key;
+
+		private final Interned name;
+
+		/**
+		 * Set on every hit, cleared when the clock hand passes. Races are
+		 * harmless, at worst a name gets one chance more or less.
+		 */
+		private boolean referenced;
+
+		public Entry(Long key, Interned name) {
+			this.key = key;
+			this.name = name;
+		}
+	}
+}
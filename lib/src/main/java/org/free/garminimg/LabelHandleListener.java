@@ -0,0 +1,54 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * A {@link MapListener} that can receive the labels as handles instead of
+ * {@link Label} objects. A handle is a long packing the kind of label and its
+ * offset, nothing is allocated or decoded for it. Use
+ * {@link ImgFileBag#getLabel(long)} on the map given to the last call to
+ * {@link #startMap(ImgFileBag)} to get the label, once it's sure it will be
+ * used.
+ * <p>
+ * The objects are sent with the handle methods when the listener implements
+ * this interface, the methods taking a Label are still used by the sources
+ * without handles.
+ */
+public interface LabelHandleListener extends MapListener {
+
+	/**
+	 * The handle of the objects without label.
+	 */
+	long NO_LABEL = 0;
+
+	/**
+	 * Same as {@link #addPoint(int, int, int, int, Label, boolean)} with a
+	 * label handle.
+	 */
+	void addPoint(int type, int subType, int longitude, int latitude,
+			long label, boolean indexed);
+
+	/**
+	 * Same as {@link #addPoly(int, int[], int[], int, Label, boolean)} with a
+	 * label handle.
+	 */
+	void addPoly(int type, int[] longitudes, int[] latitudes, int nbPoints,
+			long label, boolean line);
+}
@@ -19,10 +19,11 @@
  */
 package org.free.garminimg;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
 
@@ -33,6 +34,20 @@ class LblSubFile extends ImgSubFile {
 
 	private static final String NOCHAR = "???";
 
+	/**
+	 * Key space of the {@link LabelCache} for the names of the POI records,
+	 * by POI offset. The labels are keyed by their own offset.
+	 */
+	static final long POI_NAMES = 1L << 40;
+
+	/**
+	 * Key space of the {@link LabelCache} for the road names, by NET offset.
+	 */
+	static final long ROAD_NAMES = 2L << 40;
+
+	private final LabelCache labelCache = new LabelCache(
+			LabelCache.DEFAULT_MAX_ENTRIES);
+
 	private long dataOffset;
 
 	private long dataLength;
@@ -57,9 +72,13 @@ class LblSubFile extends ImgSubFile {
 
 	private int labelCoding;
 
-	private CharsetDecoder decoder;
+	private int codepage;
 
-	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	/**
+	 * The decoders of the 8 and 10 bits labels, one per thread as they keep a
+	 * state. Null if the codepage is not supported.
+	 */
+	private ThreadLocal<CharsetDecoder> decoder;
 
 	private long poiOffset;
 
@@ -141,7 +160,7 @@ class LblSubFile extends ImgSubFile {
 		zipSize = readUInt16(context);
 
 		seek(initialOffset + 0xaa, context);
-		int codepage = readUInt16(context);
+		codepage = readUInt16(context);
 		// int id1 = readUInt16(context);
 		// int id2 = readUInt16(context);
 		// long descOff = readUInt32(context);
@@ -155,6 +174,10 @@ class LblSubFile extends ImgSubFile {
 		// } catch (Exception e) {
 		// description = "Unknown";
 		// }
+		initDecoder();
+	}
+
+	private void initDecoder() {
 		Charset charset = null;
 		if (codepage == 0 || codepage == 850)
 			charset = Charset.forName("cp1252");
@@ -169,17 +192,100 @@ class LblSubFile extends ImgSubFile {
 			if (Charset.isSupported(cp))
 				charset = Charset.forName(cp);
 		}
-		if (charset != null)
-			decoder = charset.newDecoder();
+		if (charset != null) {
+			final Charset labelCharset = charset;
+			decoder = new ThreadLocal<CharsetDecoder>() {
+				@Override
+				protected CharsetDecoder initialValue() {
+					return labelCharset.newDecoder();
+				}
+			};
+		}
+	}
+
+	@Override
+	void writeIndex(DataOutput out) throws IOException {
+		super.writeIndex(out);
+		out.writeLong(dataOffset);
+		out.writeLong(dataLength);
+		out.writeInt(dataOffsetMultiplier);
+		out.writeInt(labelCoding);
+		out.writeLong(countryDefinitionOffset);
+		out.writeLong(countryDefinitionLength);
+		out.writeInt(countryDefinitionSize);
+		out.writeLong(regionDefinitionOffset);
+		out.writeLong(regionDefinitionLength);
+		out.writeInt(regionDefinitionSize);
+		out.writeLong(cityDefinitionOffset);
+		out.writeLong(cityDefinitionLength);
+		out.writeInt(cityDefinitionSize);
+		out.writeLong(poiOffset);
+		out.writeLong(poiLength);
+		out.writeInt(poiMultiplier);
+		out.writeInt(poiGlobalMask);
+		out.writeLong(zipOffset);
+		out.writeLong(zipLength);
+		out.writeInt(zipSize);
+		out.writeInt(codepage);
+	}
+
+	@Override
+	void readIndex(DataInput in) throws IOException {
+		super.readIndex(in);
+		dataOffset = in.readLong();
+		dataLength = in.readLong();
+		dataOffsetMultiplier = in.readInt();
+		labelCoding = in.readInt();
+		countryDefinitionOffset = in.readLong();
+		countryDefinitionLength = in.readLong();
+		countryDefinitionSize = in.readInt();
+		regionDefinitionOffset = in.readLong();
+		regionDefinitionLength = in.readLong();
+		regionDefinitionSize = in.readInt();
+		cityDefinitionOffset = in.readLong();
+		cityDefinitionLength = in.readLong();
+		cityDefinitionSize = in.readInt();
+		poiOffset = in.readLong();
+		poiLength = in.readLong();
+		poiMultiplier = in.readInt();
+		poiGlobalMask = in.readInt();
+		zipOffset = in.readLong();
+		zipLength = in.readLong();
+		zipSize = in.readInt();
+		codepage = in.readInt();
+		initDecoder();
+	}
+
+	/**
+	 * @return The cache of the names, shared with the
+	 *         {@link NetSubFile#getRoadName(long, LblSubFile)}.
+	 */
+	public LabelCache getLabelCache() {
+		return labelCache;
 	}
 
 	public String getPOIName(long offset) throws IOException {
 		if (poiMultiplier * offset > poiLength)
 			throw new IOException("Invalid POI offset");
+		String result = labelCache.get(POI_NAMES | offset);
+		if (result != null)
+			return result;
 		FileContext context = new FileContext();
+		int actualOffset = getPOILabelOffset(offset, context);
+		return labelCache.put(POI_NAMES | offset,
+				getLabelInternal(actualOffset, context));
+	}
+
+	/**
+	 * @return The offset of the name of a POI record, for
+	 *         {@link #getLabel(long, FileContext)}.
+	 */
+	int getPOILabelOffset(long offset, FileContext context)
+			throws IOException {
+		if (poiMultiplier * offset > poiLength)
+			throw new IOException("Invalid POI offset");
 		seek(poiOffset + poiMultiplier * offset, context);
-		int actualOffset = readUInt24(context) & 0x3FFFFF;
-		return getLabelInternal(actualOffset, context);
+		return readUInt24(context) & 0x3FFFFF;
 	}
 
 	public void getPOI(long offset, POILabel poi) throws IOException {
@@ -322,14 +428,26 @@ class LblSubFile extends ImgSubFile {
 		return getLabelInternal(offset, context);
 	}
 
+	/**
+	 * Same as {@link #getLabel(long)}, reading through the given context. The
+	 * current bloc is kept between the calls, to decode several labels in a
+	 * row.
+	 */
+	String getLabel(long offset, FileContext context) throws IOException {
+		return getLabelInternal(offset, context);
+	}
+
 	private String getLabelInternal(long offset, FileContext context)
 			throws IOException {
 		if (offset < 0 || offset * dataOffsetMultiplier >= dataLength)
 			throw new IOException("Invalid label offset: 0x"
 					+ Long.toHexString(offset));
+		String result = labelCache.get(offset);
+		if (result != null)
+			return result;
 		long actualOffset = dataOffset + offset * dataOffsetMultiplier;
 
-		return getAbsoluteLabel(actualOffset, context);
+		return labelCache.put(offset, getAbsoluteLabel(actualOffset, context));
 	}
 
 	private String getAbsoluteLabel(long actualOffset, FileContext context)
@@ -355,9 +473,20 @@ class LblSubFile extends ImgSubFile {
 		return result;
 	}
 
-	private enum CharSet {
-		NORMAL, SYMBOL, SPECIAL,
-	}
+	/**
+	 * Shift states of the 6 bits labels, used as the high bits of the indexes
+	 * in {@link #SIX_BITS_CHARS} and {@link #SIX_BITS_NEXT}.
+	 */
+	private static final int NORMAL = 0;
+
+	private static final int SYMBOL = 1 << 6;
+
+	private static final int SPECIAL = 2 << 6;
+
+	/**
+	 * Marks the end of a 6 bits label in {@link #SIX_BITS_NEXT}.
+	 */
+	private static final int END = -1;
 
     private static final char[] NORMAL_CHARS = {' ', 'A', 'B', 'C', 'D', 'E',
             'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R',
@@ -377,48 +506,71 @@ class LblSubFile extends ImgSubFile {
             '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '~', '~', '~',
             '~', '~', '~'};
 
+	/**
+	 * The character of each (state | code), 0 for the shift codes.
+	 */
+	private static final char[] SIX_BITS_CHARS = new char[3 << 6];
+
+	/**
+	 * The state after each (state | code), or {@link #END}.
+	 */
+	private static final int[] SIX_BITS_NEXT = new int[3 << 6];
+
+	static {
+		for (int code = 0; code < 64; ++code) {
+			if (code > 0x2F) {
+				SIX_BITS_NEXT[NORMAL | code] = END;
+				SIX_BITS_NEXT[SYMBOL | code] = END;
+				SIX_BITS_NEXT[SPECIAL | code] = END;
+				continue;
+			}
+			SIX_BITS_CHARS[NORMAL | code] = NORMAL_CHARS[code];
+			SIX_BITS_CHARS[SYMBOL | code] = SYMBOL_CHARS[code];
+			SIX_BITS_CHARS[SPECIAL | code] = SPECIAL_CHARS[code];
+		}
+		SIX_BITS_CHARS[NORMAL | 0x1b] = 0;
+		SIX_BITS_NEXT[NORMAL | 0x1b] = SPECIAL;
+		SIX_BITS_CHARS[NORMAL | 0x1c] = 0;
+		SIX_BITS_NEXT[NORMAL | 0x1c] = SYMBOL;
+		SIX_BITS_CHARS[NORMAL | 0x1d] = '|';
+		SIX_BITS_CHARS[NORMAL | 0x1e] = ' ';
+		SIX_BITS_CHARS[NORMAL | 0x1f] = ' ';
+	}
+
+	/**
+	 * Where each thread decodes the 6 bits labels.
+	 */
+	private static final ThreadLocal<char[]> SIX_BITS_BUFFER = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[64];
+		}
+	};
+
 	private String getLabel6b(long offset, FileContext context)
 			throws IOException {
 		seek(offset, context);
-		StringBuffer result = new StringBuffer();
-		CharSet curCharSet = CharSet.NORMAL;
+		char[] result = SIX_BITS_BUFFER.get();
+		int length = 0;
+		int state = NORMAL;
 		while (true) {
-			int b1 = readByte(context);
-			int b2 = readByte(context);
-			int b3 = readByte(context);
-
-            int[] c = {b1 >> 2, (b1 & 0x3) << 4 | b2 >> 4,
-                    (b2 & 0xF) << 2 | b3 >> 6, b3 & 0x3F};
-
-			for (int cpt = 0; cpt < 4; ++cpt) {
-				if (c[cpt] > 0x2F)
-					return result.toString();
-				switch (curCharSet) {
-				case NORMAL:
-					if (c[cpt] == 0x1c) {
-						curCharSet = CharSet.SYMBOL;
-					} else if (c[cpt] == 0x1b) {
-						curCharSet = CharSet.SPECIAL;
-					} else if (c[cpt] == 0x1d) {
-						result.append('|');
-					} else if (c[cpt] == 0x1f) {
-						result.append(' ');
-					} else if (c[cpt] == 0x1e) {
-						result.append(' ');
-					} else {
-						result.append(NORMAL_CHARS[c[cpt]]);
-					}
-					break;
-				case SYMBOL:
-					result.append(SYMBOL_CHARS[c[cpt]]);
-					curCharSet = CharSet.NORMAL;
-					break;
-				case SPECIAL:
-					result.append(SPECIAL_CHARS[c[cpt]]);
-					curCharSet = CharSet.NORMAL;
-					break;
-				}
-
+			int bits = (readByte(context) << 16) | (readByte(context) << 8)
+					| readByte(context);
+			if (length + 4 > result.length) {
+				char[] bigger = new char[result.length * 2];
+				System.arraycopy(result, 0, bigger, 0, length);
+				result = bigger;
+				SIX_BITS_BUFFER.set(result);
+			}
+			for (int shift = 18; shift >= 0; shift -= 6) {
+				int index = state | ((bits >> shift) & 0x3F);
+				state = SIX_BITS_NEXT[index];
+				if (state == END)
+					return new String(result, 0, length);
+				char cur = SIX_BITS_CHARS[index];
+				result[length] = cur;
+				// the shift codes write nothing
+				length += cur != 0 ? 1 : 0;
 			}
 		}
 	}
@@ -443,18 +595,12 @@ class LblSubFile extends ImgSubFile {
 			throws IOException {
 		String text = NOCHAR;
 		if (decoder != null) {
-			out.reset();
 			seek(offset, context);
-			while (true) {
-				byte cur = (byte) readByte(context);
-				if (cur == 0)
-					break;
-				out.write(cur);
-			}
-			byte[] ba = out.toByteArray();
 			try {
-				text = decoder.decode(ByteBuffer.wrap(ba)).toString();
-			} catch (Exception e) {
+				// decode() resets the decoder
+				text = decoder.get().decode(readZeroTerminated(context))
+						.toString();
+			} catch (CharacterCodingException e) {
 			}
 		}
 		return text;
@@ -0,0 +1,230 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.util.Arrays;
+
+/**
+ * A listener recording the events it receives, to send them later to
+ * another listener in the same order. The coordinates are copied.
+ * {@link #finishPainting()} is not recorded.
+ * <p>
+ * The label handles are kept as is and resolved when replayed to a listener
+ * not taking handles, with the map of the last startMap or startSubDivision.
+ */
+class MapEventBuffer implements LabelHandleListener {
+
+	private static final byte START_MAP = 0;
+
+	private static final byte START_SUB_DIVISION = 1;
+
+	private static final byte POINT = 2;
+
+	private static final byte INDEXED_POINT = 3;
+
+	private static final byte POLYLINE = 4;
+
+	private static final byte POLYGON = 5;
+
+	/**
+	 * Added to the object events whose label is a handle.
+	 */
+	private static final byte WITH_HANDLE = 8;
+
+	private byte[] events = new byte[64];
+
+	/**
+	 * The map, sub-division or label of each event.
+	 */
+	private Object[] objects = new Object[64];
+
+	/**
+	 * The label handle of each event, for the events WITH_HANDLE.
+	 */
+	private long[] handles = new long[64];
+
+	private int nbEvents = 0;
+
+	/**
+	 * The numbers of the events: type, sub-type and coordinates for the
+	 * points; type, number of points, longitudes and latitudes for the polys.
+	 */
+	private int[] values = new int[256];
+
+	private int nbValues = 0;
+
+	public void addPoint(int type, int subType, int longitude, int latitude,
+			Label label, boolean indexed) {
+		addEvent(indexed ? INDEXED_POINT : POINT, label);
+		checkValuesSize(4);
+		values[nbValues++] = type;
+		values[nbValues++] = subType;
+		values[nbValues++] = longitude;
+		values[nbValues++] = latitude;
+	}
+
+	public void addPoint(int type, int subType, int longitude, int latitude,
+			long label, boolean indexed) {
+		addEvent((byte) ((indexed ? INDEXED_POINT : POINT) | WITH_HANDLE),
+				null);
+		handles[nbEvents - 1] = label;
+		checkValuesSize(4);
+		values[nbValues++] = type;
+		values[nbValues++] = subType;
+		values[nbValues++] = longitude;
+		values[nbValues++] = latitude;
+	}
+
+	public void addPoly(int type, int[] longitudes, int[] latitudes,
+			int nbPoints, Label label, boolean line) {
+		addEvent(line ? POLYLINE : POLYGON, label);
+		addPolyValues(type, longitudes, latitudes, nbPoints);
+	}
+
+	public void addPoly(int type, int[] longitudes, int[] latitudes,
+			int nbPoints, long label, boolean line) {
+		addEvent((byte) ((line ? POLYLINE : POLYGON) | WITH_HANDLE), null);
+		handles[nbEvents - 1] = label;
+		addPolyValues(type, longitudes, latitudes, nbPoints);
+	}
+
+	private void addPolyValues(int type, int[] longitudes, int[] latitudes,
+			int nbPoints) {
+		checkValuesSize(2 + 2 * nbPoints);
+		values[nbValues++] = type;
+		values[nbValues++] = nbPoints;
+		System.arraycopy(longitudes, 0, values, nbValues, nbPoints);
+		nbValues += nbPoints;
+		System.arraycopy(latitudes, 0, values, nbValues, nbPoints);
+		nbValues += nbPoints;
+	}
+
+	public void startMap(ImgFileBag file) {
+		addEvent(START_MAP, file);
+	}
+
+	public void startSubDivision(SubDivision subDivision) {
+		addEvent(START_SUB_DIVISION, subDivision);
+	}
+
+	public void finishPainting() {
+	}
+
+	public boolean isEmpty() {
+		return nbEvents == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(objects, 0, nbEvents, null);
+		nbEvents = 0;
+		nbValues = 0;
+	}
+
+	/**
+	 * Send the recorded events to the given listener.
+	 */
+	public void replay(MapListener listener) {
+		LabelHandleListener handleListener = listener instanceof LabelHandleListener ? (LabelHandleListener) listener
+				: null;
+		ImgFileBag map = null;
+		int[] longitudes = new int[50];
+		int[] latitudes = new int[50];
+		int pos = 0;
+		for (int cpt = 0; cpt < nbEvents; ++cpt) {
+			final byte event = events[cpt];
+			final boolean withHandle = (event & WITH_HANDLE) != 0;
+			switch (event & ~WITH_HANDLE) {
+			case START_MAP:
+				map = (ImgFileBag) objects[cpt];
+				listener.startMap(map);
+				break;
+			case START_SUB_DIVISION:
+				SubDivision subDivision = (SubDivision) objects[cpt];
+				map = subDivision.getTre().getImgFileBag();
+				listener.startSubDivision(subDivision);
+				break;
+			case POINT:
+			case INDEXED_POINT:
+				boolean indexed = (event & ~WITH_HANDLE) == INDEXED_POINT;
+				if (withHandle && handleListener != null)
+					handleListener.addPoint(values[pos], values[pos + 1],
+							values[pos + 2], values[pos + 3], handles[cpt],
+							indexed);
+				else
+					listener.addPoint(values[pos], values[pos + 1],
+							values[pos + 2], values[pos + 3],
+							getLabel(cpt, map), indexed);
+				pos += 4;
+				break;
+			default:
+				int type = values[pos++];
+				int nbPoints = values[pos++];
+				if (nbPoints > longitudes.length) {
+					longitudes = new int[nbPoints * 2];
+					latitudes = new int[nbPoints * 2];
+				}
+				System.arraycopy(values, pos, longitudes, 0, nbPoints);
+				pos += nbPoints;
+				System.arraycopy(values, pos, latitudes, 0, nbPoints);
+				pos += nbPoints;
+				boolean line = (event & ~WITH_HANDLE) == POLYLINE;
+				if (withHandle && handleListener != null)
+					handleListener.addPoly(type, longitudes, latitudes,
+							nbPoints, handles[cpt], line);
+				else
+					listener.addPoly(type, longitudes, latitudes, nbPoints,
+							getLabel(cpt, map), line);
+				break;
+			}
+		}
+	}
+
+	private Label getLabel(int event, ImgFileBag map) {
+		if ((events[event] & WITH_HANDLE) != 0)
+			return map.getLabel(handles[event]);
+		return (Label) objects[event];
+	}
+
+	private void addEvent(byte event, Object object) {
+		if (nbEvents == events.length) {
+			byte[] newEvents = new byte[events.length * 2];
+			System.arraycopy(events, 0, newEvents, 0, nbEvents);
+			events = newEvents;
+			Object[] newObjects = new Object[objects.length * 2];
+			System.arraycopy(objects, 0, newObjects, 0, nbEvents);
+			objects = newObjects;
+			long[] newHandles = new long[handles.length * 2];
+			System.arraycopy(handles, 0, newHandles, 0, nbEvents);
+			handles = newHandles;
+		}
+		events[nbEvents] = event;
+		objects[nbEvents] = object;
+		nbEvents++;
+	}
+
+	private void checkValuesSize(int needed) {
+		if (nbValues + needed > values.length) {
+			int[] newValues = new int[Math.max(values.length * 2, nbValues
+					+ needed)];
+			System.arraycopy(values, 0, newValues, 0, nbValues);
+			values = newValues;
+		}
+	}
+}
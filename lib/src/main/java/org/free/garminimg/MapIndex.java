@@ -0,0 +1,223 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packed R-tree over the bounds of a set of maps, built once with the
+ * Sort-Tile-Recursive method. The result of a query keeps the order of the
+ * maps given at construction, it costs O(log n + k log k) for k maps found.
+ * <p>
+ * Immutable, so thread safe.
+ */
+class MapIndex {
+
+	private static final int NODE_SIZE = 16;
+
+	/**
+	 * The maps, in the order of the results.
+	 */
+	private final ImgFileBag[] maps;
+
+	/**
+	 * The maps without TRE, always returned.
+	 */
+	private final int[] unboundedMaps;
+
+	/**
+	 * Bounds of the nodes, by level. Level 0 contains the maps themselves.
+	 */
+	private final int[][] minLongs, maxLongs, minLats, maxLats;
+
+	/**
+	 * For the levels above 0, the children of node i in the level below are
+	 * between firstChildren[level][i] and firstChildren[level][i+1]
+	 * (excluded).
+	 */
+	private final int[][] firstChildren;
+
+	/**
+	 * Position of the entries of level 0 in {@link #maps}.
+	 */
+	private final int[] mapPositions;
+
+	MapIndex(Collection<ImgFileBag> sortedMaps) throws IOException {
+		maps = sortedMaps.toArray(new ImgFileBag[0]);
+
+		ArrayList<Integer> bounded = new ArrayList<Integer>(maps.length);
+		ArrayList<Integer> unbounded = new ArrayList<Integer>();
+		for (int cpt = 0; cpt < maps.length; ++cpt) {
+			if (maps[cpt].getTreFile() != null)
+				bounded.add(cpt);
+			else
+				unbounded.add(cpt);
+		}
+		unboundedMaps = new int[unbounded.size()];
+		for (int cpt = 0; cpt < unboundedMaps.length; ++cpt) {
+			unboundedMaps[cpt] = unbounded.get(cpt);
+		}
+
+		final int nb = bounded.size();
+		final int[] west = new int[maps.length];
+		final int[] east = new int[maps.length];
+		final int[] south = new int[maps.length];
+		final int[] north = new int[maps.length];
+		for (int pos : bounded) {
+			west[pos] = maps[pos].getWestBoundary();
+			east[pos] = maps[pos].getEastBoundary();
+			south[pos] = maps[pos].getSouthBoundary();
+			north[pos] = maps[pos].getNorthBoundary();
+		}
+
+		// sort-tile: vertical slices by longitude, then by latitude inside
+		// each slice
+		Integer[] order = bounded.toArray(new Integer[nb]);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare((long) west[o1] + east[o1], (long) west[o2]
+						+ east[o2]);
+			}
+		});
+		int nbLeaves = (nb + NODE_SIZE - 1) / NODE_SIZE;
+		int sliceSize = NODE_SIZE
+				* (int) Math.ceil(Math.sqrt(Math.max(nbLeaves, 1)));
+		for (int start = 0; start < nb; start += sliceSize) {
+			Arrays.sort(order, start, Math.min(start + sliceSize, nb),
+					new Comparator<Integer>() {
+						public int compare(Integer o1, Integer o2) {
+							return Long.compare((long) south[o1] + north[o1],
+									(long) south[o2] + north[o2]);
+						}
+					});
+		}
+
+		int nbLevels = 1;
+		for (int size = nb; size > NODE_SIZE; size = (size + NODE_SIZE - 1)
+				/ NODE_SIZE) {
+			++nbLevels;
+		}
+		minLongs = new int[nbLevels][];
+		maxLongs = new int[nbLevels][];
+		minLats = new int[nbLevels][];
+		maxLats = new int[nbLevels][];
+		firstChildren = new int[nbLevels][];
+
+		mapPositions = new int[nb];
+		minLongs[0] = new int[nb];
+		maxLongs[0] = new int[nb];
+		minLats[0] = new int[nb];
+		maxLats[0] = new int[nb];
+		for (int cpt = 0; cpt < nb; ++cpt) {
+			int pos = order[cpt];
+			mapPositions[cpt] = pos;
+			minLongs[0][cpt] = west[pos];
+			maxLongs[0][cpt] = east[pos];
+			minLats[0][cpt] = south[pos];
+			maxLats[0][cpt] = north[pos];
+		}
+
+		// pack: consecutive entries are grouped in nodes
+		for (int level = 1; level < nbLevels; ++level) {
+			int nbChildren = minLongs[level - 1].length;
+			int nbNodes = (nbChildren + NODE_SIZE - 1) / NODE_SIZE;
+			minLongs[level] = new int[nbNodes];
+			maxLongs[level] = new int[nbNodes];
+			minLats[level] = new int[nbNodes];
+			maxLats[level] = new int[nbNodes];
+			firstChildren[level] = new int[nbNodes + 1];
+			for (int node = 0; node < nbNodes; ++node) {
+				int first = node * NODE_SIZE;
+				int end = Math.min(first + NODE_SIZE, nbChildren);
+				firstChildren[level][node] = first;
+				int minLong = Integer.MAX_VALUE, maxLong = Integer.MIN_VALUE;
+				int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+				for (int child = first; child < end; ++child) {
+					minLong = Math.min(minLong, minLongs[level - 1][child]);
+					maxLong = Math.max(maxLong, maxLongs[level - 1][child]);
+					minLat = Math.min(minLat, minLats[level - 1][child]);
+					maxLat = Math.max(maxLat, maxLats[level - 1][child]);
+				}
+				minLongs[level][node] = minLong;
+				maxLongs[level][node] = maxLong;
+				minLats[level][node] = minLat;
+				maxLats[level][node] = maxLat;
+			}
+			firstChildren[level][nbNodes] = nbChildren;
+		}
+	}
+
+	/**
+	 * @return The maps whose bounds intersect the given area, in the order
+	 *         given at construction. Only the k maps found are sorted.
+	 */
+	List<ImgFileBag> query(int minLong, int maxLong, int minLat, int maxLat) {
+		Hits hits = new Hits();
+		for (int pos : unboundedMaps) {
+			hits.add(pos);
+		}
+		int top = minLongs.length - 1;
+		for (int node = 0; node < minLongs[top].length; ++node) {
+			query(top, node, minLong, maxLong, minLat, maxLat, hits);
+		}
+		Arrays.sort(hits.positions, 0, hits.nb);
+		List<ImgFileBag> result = new ArrayList<ImgFileBag>(hits.nb);
+		for (int cpt = 0; cpt < hits.nb; ++cpt) {
+			result.add(maps[hits.positions[cpt]]);
+		}
+		return result;
+	}
+
+	private void query(int level, int node, int minLong, int maxLong,
+			int minLat, int maxLat, Hits hits) {
+		if (!CoordUtils.matchesCoordinates(minLongs[level][node],
+				maxLongs[level][node], minLats[level][node],
+				maxLats[level][node], minLong, maxLong, minLat, maxLat))
+			return;
+		if (level == 0) {
+			hits.add(mapPositions[node]);
+		} else {
+			for (int child = firstChildren[level][node]; child < firstChildren[level][node + 1]; ++child) {
+				query(level - 1, child, minLong, maxLong, minLat, maxLat,
+						hits);
+			}
+		}
+	}
+
+	/**
+	 * Positions in {@link MapIndex#maps} of the maps found, grown as needed.
+	 */
+	private static class Hits {
+		private int[] positions = new int[NODE_SIZE];
+
+		private int nb;
+
+		public void add(int position) {
+			if (nb == positions.length)
+				positions = Arrays.copyOf(positions, nb * 2);
+			positions[nb++] = position;
+		}
+	}
+}
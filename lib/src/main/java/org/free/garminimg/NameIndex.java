@@ -0,0 +1,646 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the names of the objects of one map, to find them without decoding
+ * the whole map. It's a sorted table of the normalized names (see
+ * {@link #normalize(String)}), each one with the location of its objects: the
+ * sub-division, the kind of object and its ordinal among the objects of this
+ * kind in the sub-division.
+ * <p>
+ * Built from the sub-divisions of the most detailed levels, the first time it
+ * is needed, and kept next to the sidecar index of the .img if the context
+ * has an index directory. The elevations of the contour lines are not
+ * indexed.
+ * 
+ * @see ImgFileBag#getNameIndex()
+ */
+public class NameIndex {
+
+	private static final String TAG = "-name index->";
+
+	private static final int MAGIC = 0x474E414D; // GNAM
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The kinds of objects indexed. They are parsed one at a time, the
+	 * ordinals are counted by kind.
+	 */
+	private static final int[] KINDS = { ObjectKind.POLYGON,
+			ObjectKind.EXTENDED_POLYGON, ObjectKind.POLYLINE,
+			ObjectKind.EXTENDED_POLYLINE, ObjectKind.POINT,
+			ObjectKind.INDEXED_POINT, ObjectKind.EXTENDED_POINT };
+
+	private final ImgFileBag map;
+
+	/**
+	 * The distinct normalized names, sorted.
+	 */
+	private final String[] names;
+
+	/**
+	 * For each name, the index of its first entry. One more element for the
+	 * end of the last one.
+	 */
+	private final int[] firstEntries;
+
+	private final int[] subDivisions;
+
+	private final int[] kinds;
+
+	private final int[] ordinals;
+
+	private final long[] labels;
+
+	private NameIndex(ImgFileBag map, String[] names, int[] firstEntries,
+			int[] subDivisions, int[] kinds, int[] ordinals, long[] labels) {
+		this.map = map;
+		this.names = names;
+		this.firstEntries = firstEntries;
+		this.subDivisions = subDivisions;
+		this.kinds = kinds;
+		this.ordinals = ordinals;
+		this.labels = labels;
+	}
+
+	/**
+	 * @return The index of the given map, loaded from its sidecar file or
+	 *         built.
+	 */
+	static NameIndex create(ImgFileBag map) throws IOException {
+		TreSubFile tre = map.getTreFile();
+		if (tre == null || map.getRgnFile() == null)
+			return new NameIndex(map, new String[0], new int[1], new int[0],
+					new int[0], new int[0], new long[0]);
+		File directory = map.getImgContext().getIndexDirectory();
+		ImgFileIndex fileIndex = null;
+		File sidecar = null;
+		if (directory != null) {
+			fileIndex = new ImgFileIndex(map.getFile(), directory);
+			sidecar = fileIndex.getSidecarFile(tre.getFilename() + ".names");
+			NameIndex result = load(map, fileIndex, sidecar);
+			if (result != null)
+				return result;
+		}
+		NameIndex result = build(map);
+		if (sidecar != null)
+			result.save(fileIndex, sidecar);
+		return result;
+	}
+
+	/**
+	 * @return The name as kept in the index: in lower case, without the
+	 *         accents and the control characters, with the spaces collapsed.
+	 */
+	public static String normalize(String name) {
+		String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+		StringBuilder result = new StringBuilder(decomposed.length());
+		boolean space = true;
+		for (int cpt = 0; cpt < decomposed.length(); ++cpt) {
+			char cur = decomposed.charAt(cpt);
+			if (Character.getType(cur) == Character.NON_SPACING_MARK)
+				continue;
+			if (cur < 0x20 || Character.isWhitespace(cur)) {
+				if (!space) {
+					result.append(' ');
+					space = true;
+				}
+				continue;
+			}
+			result.append(Character.toLowerCase(cur));
+			space = false;
+		}
+		if (space && result.length() > 0)
+			result.setLength(result.length() - 1);
+		return result.toString();
+	}
+
+	/**
+	 * @return The objects whose normalized name starts with the given text.
+	 */
+	public List<Match> findPrefix(String prefix) {
+		String key = normalize(prefix);
+		List<Match> result = new ArrayList<Match>();
+		int pos = Arrays.binarySearch(names, key);
+		if (pos < 0)
+			pos = -pos - 1;
+		for (; pos < names.length && names[pos].startsWith(key); ++pos) {
+			addMatches(pos, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The objects whose normalized name contains the given text. Only
+	 *         the names are scanned, not the map.
+	 */
+	public List<Match> findSubstring(String text) {
+		String key = normalize(text);
+		List<Match> result = new ArrayList<Match>();
+		for (int pos = 0; pos < names.length; ++pos) {
+			if (names[pos].contains(key))
+				addMatches(pos, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Decode the objects found and send them to the listener. Only the
+	 * sub-divisions and the kinds of objects of the matches are parsed.
+	 */
+	public void readObjects(List<Match> matches, MapListener listener)
+			throws IOException {
+		if (matches.isEmpty())
+			return;
+		List<Match> sorted = new ArrayList<Match>(matches);
+		Collections.sort(sorted, BY_LOCATION);
+		TreSubFile tre = map.getTreFile();
+		RgnContext rgnContext = new RgnContext();
+		Selector selector = new Selector(listener);
+		listener.startMap(map);
+		SubDivision current = null;
+		int cpt = 0;
+		while (cpt < sorted.size()) {
+			Match first = sorted.get(cpt);
+			int end = cpt + 1;
+			while (end < sorted.size()
+					&& sorted.get(end).subDivision == first.subDivision
+					&& sorted.get(end).kind == first.kind)
+				++end;
+			SubDivision subDivision = tre.getSubDivision(first.subDivision);
+			if (subDivision != null) {
+				if (subDivision != current) {
+					listener.startSubDivision(subDivision);
+					current = subDivision;
+				}
+				selector.select(sorted, cpt, end);
+				map.parseSubDivision(subDivision, first.kind, null, selector,
+						rgnContext);
+			}
+			cpt = end;
+		}
+	}
+
+	public int getNbNames() {
+		return names.length;
+	}
+
+	/**
+	 * @return The number of objects indexed.
+	 */
+	public int getNbEntries() {
+		return firstEntries[names.length];
+	}
+
+	private void addMatches(int pos, List<Match> result) {
+		for (int entry = firstEntries[pos]; entry < firstEntries[pos + 1]; ++entry) {
+			result.add(new Match(names[pos], subDivisions[entry],
+					kinds[entry], ordinals[entry], labels[entry]));
+		}
+	}
+
+	private static NameIndex build(ImgFileBag map) throws IOException {
+		Collector collector = new Collector();
+		List<SubDivision> found = map.findSubDivisions(map.getWestBoundary(),
+				map.getEastBoundary(), map.getSouthBoundary(),
+				map.getNorthBoundary(), 1);
+		RgnContext rgnContext = new RgnContext();
+		if (found != null) {
+			for (SubDivision subDivision : found) {
+				for (int kind : KINDS) {
+					collector.start(subDivision.getIndex(), kind);
+					try {
+						map.parseSubDivision(subDivision, kind, null,
+								collector, rgnContext);
+					} catch (IOException e) {
+						Log.w(TAG, "Cannot index the sub-division "
+								+ subDivision.getIndex() + ": "
+								+ e.getMessage());
+					}
+				}
+			}
+		}
+		return collector.finish(map);
+	}
+
+	private static NameIndex load(ImgFileBag map, ImgFileIndex fileIndex,
+			File file) {
+		if (!file.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION
+						|| !fileIndex.checkStamp(in))
+					return null;
+				String[] names = new String[in.readInt()];
+				int[] firstEntries = new int[names.length + 1];
+				for (int cpt = 0; cpt < names.length; ++cpt) {
+					names[cpt] = in.readUTF();
+				}
+				for (int cpt = 0; cpt < firstEntries.length; ++cpt) {
+					firstEntries[cpt] = in.readInt();
+				}
+				int nbEntries = firstEntries[names.length];
+				int[] subDivisions = new int[nbEntries];
+				int[] kinds = new int[nbEntries];
+				int[] ordinals = new int[nbEntries];
+				long[] labels = new long[nbEntries];
+				for (int cpt = 0; cpt < nbEntries; ++cpt) {
+					subDivisions[cpt] = in.readInt();
+					kinds[cpt] = in.readInt();
+					ordinals[cpt] = in.readInt();
+					labels[cpt] = in.readLong();
+				}
+				return new NameIndex(map, names, firstEntries, subDivisions,
+						kinds, ordinals, labels);
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.w(TAG, "Invalid name index " + file + ", rebuilding it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Failures are only logged, the index is built again next time.
+	 */
+	private void save(ImgFileIndex fileIndex, File file) {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				fileIndex.writeStamp(out);
+				out.writeInt(names.length);
+				for (String name : names) {
+					out.writeUTF(name);
+				}
+				for (int first : firstEntries) {
+					out.writeInt(first);
+				}
+				for (int cpt = 0; cpt < getNbEntries(); ++cpt) {
+					out.writeInt(subDivisions[cpt]);
+					out.writeInt(kinds[cpt]);
+					out.writeInt(ordinals[cpt]);
+					out.writeLong(labels[cpt]);
+				}
+			} finally {
+				out.close();
+			}
+			ImgFileIndex.replace(tmp, file);
+		} catch (IOException | RuntimeException e) {
+			tmp.delete();
+			Log.w(TAG, "Cannot write name index " + file, e);
+		}
+	}
+
+	private static final Comparator<Match> BY_LOCATION = new Comparator<Match>() {
+		public int compare(Match a, Match b) {
+			if (a.subDivision != b.subDivision)
+				return a.subDivision - b.subDivision;
+			if (a.kind != b.kind)
+				return a.kind - b.kind;
+			return a.ordinal - b.ordinal;
+		}
+	};
+
+	/**
+	 * An object found in the index.
+	 */
+	public static class Match {
+		private final String name;
+
+		private final int subDivision;
+
+		private final int kind;
+
+		private final int ordinal;
+
+		private final long label;
+
+		Match(String name, int subDivision, int kind, int ordinal, long label) {
+			this.name = name;
+			this.subDivision = subDivision;
+			this.kind = kind;
+			this.ordinal = ordinal;
+			this.label = label;
+		}
+
+		/**
+		 * @return The normalized name.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The index of the sub-division, see
+		 *         {@link TreSubFile#getSubDivision(int)}.
+		 */
+		public int getSubDivision() {
+			return subDivision;
+		}
+
+		/**
+		 * @return The kind of object, one of the {@link ObjectKind}.
+		 */
+		public int getObjectKind() {
+			return kind;
+		}
+
+		/**
+		 * @return The position of the object among the objects of the same
+		 *         kind of the sub-division.
+		 */
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		/**
+		 * @return The label handle, see {@link ImgFileBag#getLabel(long)}.
+		 */
+		public long getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * Collects the labeled objects of the sub-divisions.
+	 */
+	private static class Collector implements LabelHandleListener {
+		private int subDivision;
+
+		private int kind;
+
+		private int ordinal;
+
+		private int nbEntries = 0;
+
+		private int[] subDivisions = new int[256];
+
+		private int[] kinds = new int[256];
+
+		private int[] ordinals = new int[256];
+
+		private long[] labels = new long[256];
+
+		public void start(int subDivision, int kind) {
+			this.subDivision = subDivision;
+			this.kind = kind;
+			this.ordinal = 0;
+		}
+
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, long label, boolean indexed) {
+			add(label);
+		}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, long label, boolean line) {
+			add(label);
+		}
+
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, Label label, boolean indexed) {
+			// always sent with a handle by the RGN
+			ordinal++;
+		}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, Label label, boolean line) {
+			ordinal++;
+		}
+
+		public void startMap(ImgFileBag file) {
+		}
+
+		public void startSubDivision(SubDivision subDivision) {
+		}
+
+		public void finishPainting() {
+		}
+
+		private void add(long label) {
+			// the elevations are not names
+			if (label != NO_LABEL && (label >>> 40) == 0) {
+				if (nbEntries == labels.length) {
+					subDivisions = Arrays.copyOf(subDivisions, nbEntries * 2);
+					kinds = Arrays.copyOf(kinds, nbEntries * 2);
+					ordinals = Arrays.copyOf(ordinals, nbEntries * 2);
+					labels = Arrays.copyOf(labels, nbEntries * 2);
+				}
+				subDivisions[nbEntries] = subDivision;
+				kinds[nbEntries] = kind;
+				ordinals[nbEntries] = ordinal;
+				labels[nbEntries] = label;
+				nbEntries++;
+			}
+			ordinal++;
+		}
+
+		public NameIndex finish(ImgFileBag map) {
+			// the distinct labels, decoded in one sweep
+			Map<Long, Label> distinct = new HashMap<Long, Label>();
+			LabelBatch batch = new LabelBatch();
+			for (int cpt = 0; cpt < nbEntries; ++cpt) {
+				if (!distinct.containsKey(labels[cpt])) {
+					Label label = map.getLabel(labels[cpt]);
+					distinct.put(labels[cpt], label);
+					batch.add(label);
+				}
+			}
+			batch.resolve();
+			Map<Long, String> normalized = new HashMap<Long, String>();
+			for (Map.Entry<Long, Label> entry : distinct.entrySet()) {
+				try {
+					String name = entry.getValue().getName();
+					if (name != null) {
+						name = normalize(name);
+						if (name.length() > 0)
+							normalized.put(entry.getKey(), name);
+					}
+				} catch (IOException e) {
+					// not indexed
+				}
+			}
+
+			// sorted by name, then in the order of the map
+			final String[] entryNames = new String[nbEntries];
+			List<Integer> order = new ArrayList<Integer>(nbEntries);
+			for (int cpt = 0; cpt < nbEntries; ++cpt) {
+				entryNames[cpt] = normalized.get(labels[cpt]);
+				if (entryNames[cpt] != null)
+					order.add(cpt);
+			}
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return entryNames[a].compareTo(entryNames[b]);
+				}
+			});
+
+			int nb = order.size();
+			ArrayList<String> names = new ArrayList<String>();
+			int[] firstEntries = new int[nb + 1];
+			int[] sortedSubDivisions = new int[nb];
+			int[] sortedKinds = new int[nb];
+			int[] sortedOrdinals = new int[nb];
+			long[] sortedLabels = new long[nb];
+			for (int cpt = 0; cpt < nb; ++cpt) {
+				int entry = order.get(cpt);
+				String name = entryNames[entry];
+				if (names.isEmpty()
+						|| !names.get(names.size() - 1).equals(name)) {
+					firstEntries[names.size()] = cpt;
+					names.add(name);
+				}
+				sortedSubDivisions[cpt] = subDivisions[entry];
+				sortedKinds[cpt] = kinds[entry];
+				sortedOrdinals[cpt] = ordinals[entry];
+				sortedLabels[cpt] = labels[entry];
+			}
+			firstEntries[names.size()] = nb;
+			return new NameIndex(map, names.toArray(new String[names.size()]),
+					Arrays.copyOf(firstEntries, names.size() + 1),
+					sortedSubDivisions, sortedKinds, sortedOrdinals,
+					sortedLabels);
+		}
+	}
+
+	/**
+	 * Forwards only the selected objects of a sub-division.
+	 */
+	private class Selector implements LabelHandleListener {
+		private final MapListener listener;
+
+		private final LabelHandleListener handleListener;
+
+		private List<Match> matches;
+
+		private int next;
+
+		private int end;
+
+		private int ordinal;
+
+		public Selector(MapListener listener) {
+			this.listener = listener;
+			this.handleListener = listener instanceof LabelHandleListener ? (LabelHandleListener) listener
+					: null;
+		}
+
+		/**
+		 * Select the matches from start to end, sorted by ordinal.
+		 */
+		public void select(List<Match> matches, int start, int end) {
+			this.matches = matches;
+			this.next = start;
+			this.end = end;
+			this.ordinal = 0;
+		}
+
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, long label, boolean indexed) {
+			if (isSelected()) {
+				if (handleListener != null)
+					handleListener.addPoint(type, subType, longitude,
+							latitude, label, indexed);
+				else
+					listener.addPoint(type, subType, longitude, latitude,
+							map.getLabel(label), indexed);
+			}
+		}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, long label, boolean line) {
+			if (isSelected()) {
+				if (handleListener != null)
+					handleListener.addPoly(type, longitudes, latitudes,
+							nbPoints, label, line);
+				else
+					listener.addPoly(type, longitudes, latitudes, nbPoints,
+							map.getLabel(label), line);
+			}
+		}
+
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, Label label, boolean indexed) {
+			if (isSelected())
+				listener.addPoint(type, subType, longitude, latitude, label,
+						indexed);
+		}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, Label label, boolean line) {
+			if (isSelected())
+				listener.addPoly(type, longitudes, latitudes, nbPoints, label,
+						line);
+		}
+
+		public void startMap(ImgFileBag file) {
+		}
+
+		public void startSubDivision(SubDivision subDivision) {
+		}
+
+		public void finishPainting() {
+		}
+
+		/**
+		 * @return True if the current object was selected, moves to the
+		 *         next one.
+		 */
+		private boolean isSelected() {
+			boolean result = false;
+			// the same object can be selected twice
+			while (next < end && matches.get(next).ordinal == ordinal) {
+				result = true;
+				next++;
+			}
+			ordinal++;
+			return result;
+		}
+	}
+}
@@ -19,6 +19,8 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -73,17 +75,47 @@ class NetSubFile extends ImgSubFile {
 		// sortedRoadDefinitionSize=readUInt16(context);
 	}
 
-	public String getRoadName(long offset, LblSubFile lbl) throws IOException {
-		long multOffset = roadDefinitionOffsetMultiplier * offset;
+	@Override
+	void writeIndex(DataOutput out) throws IOException {
+		super.writeIndex(out);
+		out.writeLong(roadDefinitionOffset);
+		out.writeLong(roadDefinitionLength);
+		out.writeInt(roadDefinitionOffsetMultiplier);
+	}
 
-		if (multOffset > roadDefinitionLength)
+	@Override
+	void readIndex(DataInput in) throws IOException {
+		super.readIndex(in);
+		roadDefinitionOffset = in.readLong();
+		roadDefinitionLength = in.readLong();
+		roadDefinitionOffsetMultiplier = in.readInt();
+	}
+
+	public String getRoadName(long offset, LblSubFile lbl) throws IOException {
+		if (roadDefinitionOffsetMultiplier * offset > roadDefinitionLength)
 			return "!!!error!!!";
 
-		FileContext context = new FileContext();
-		seek(roadDefinitionOffset + multOffset, context);
-		long actualOffset = readUInt24(context) & 0x3FFFFF;
+		LabelCache cache = lbl.getLabelCache();
+		String result = cache.get(LblSubFile.ROAD_NAMES | offset);
+		if (result != null)
+			return result;
+		long actualOffset = getRoadLabelOffset(offset, new FileContext());
+
+		return cache.put(LblSubFile.ROAD_NAMES | offset,
+				lbl.getLabel(actualOffset));
+	}
 
-		return lbl.getLabel(actualOffset);
+	/**
+	 * @return The offset in the LBL of the name of a road, or -1 if the
+	 *         offset is invalid.
+	 */
+	long getRoadLabelOffset(long offset, FileContext context)
+			throws IOException {
+		long multOffset = roadDefinitionOffsetMultiplier * offset;
+		if (multOffset > roadDefinitionLength)
+			return -1;
+		seek(roadDefinitionOffset + multOffset, context);
+		return readUInt24(context) & 0x3FFFFF;
 	}
 
 }
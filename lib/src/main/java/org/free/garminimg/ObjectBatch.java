@@ -0,0 +1,223 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg;
+
+/**
+ * The objects of one segment of a sub-division (all points, all lines or all
+ * polygons), in columnar buffers given to a {@link BatchMapListener}. The
+ * coordinates of all the objects are in one array, {@link #getFirstPoints()}
+ * gives where each object starts. They are in Garmin units or in pixels,
+ * depending on the listener. The labels are handles, see
+ * {@link LabelHandleListener}.
+ * <p>
+ * The buffers are re-used, don't keep a pointer on them for more than the
+ * duration of the call.
+ */
+public class ObjectBatch {
+
+	private boolean points;
+
+	private boolean line;
+
+	private boolean indexed;
+
+	private int nbObjects = 0;
+
+	private int[] types = new int[16];
+
+	private int[] subTypes = new int[16];
+
+	private long[] labels = new long[16];
+
+	/**
+	 * For each object, the index of its first point. One more element for the
+	 * end of the last one.
+	 */
+	private int[] firstPoints = new int[17];
+
+	private int[] xPoints = new int[64];
+
+	private int[] yPoints = new int[64];
+
+	/**
+	 * Empty the batch before filling it with another segment.
+	 * 
+	 * @param points
+	 *            True if the objects are points.
+	 * @param line
+	 *            True for polylines, false for polygons.
+	 * @param indexed
+	 *            True for indexed points.
+	 */
+	public void clear(boolean points, boolean line, boolean indexed) {
+		this.points = points;
+		this.line = line;
+		this.indexed = indexed;
+		nbObjects = 0;
+	}
+
+	public void addPoint(int type, int subType, int x, int y, long label) {
+		int first = addObject(type, subType, label, 1);
+		xPoints[first] = x;
+		yPoints[first] = y;
+	}
+
+	public void addPoly(int type, int[] xPoints, int[] yPoints, int nbPoints,
+			long label) {
+		int first = addObject(type, 0, label, nbPoints);
+		System.arraycopy(xPoints, 0, this.xPoints, first, nbPoints);
+		System.arraycopy(yPoints, 0, this.yPoints, first, nbPoints);
+	}
+
+	/**
+	 * Make this batch a copy of another one. Useful to transform the
+	 * coordinates in the copy, see {@link #getXPoints()}.
+	 */
+	public void copyFrom(ObjectBatch other) {
+		clear(other.points, other.line, other.indexed);
+		int nbPoints = other.getNbPoints();
+		ensureSize(other.nbObjects, nbPoints);
+		System.arraycopy(other.types, 0, types, 0, other.nbObjects);
+		System.arraycopy(other.subTypes, 0, subTypes, 0, other.nbObjects);
+		System.arraycopy(other.labels, 0, labels, 0, other.nbObjects);
+		System.arraycopy(other.firstPoints, 0, firstPoints, 0,
+				other.nbObjects + 1);
+		System.arraycopy(other.xPoints, 0, xPoints, 0, nbPoints);
+		System.arraycopy(other.yPoints, 0, yPoints, 0, nbPoints);
+		nbObjects = other.nbObjects;
+	}
+
+	/**
+	 * Copy the coordinates of one object at the start of the given arrays.
+	 * They must be at least {@link #getNbPoints(int)} long.
+	 * 
+	 * @return The number of points copied.
+	 */
+	public int getPoly(int index, int[] xPoints, int[] yPoints) {
+		int first = firstPoints[index];
+		int nbPoints = firstPoints[index + 1] - first;
+		System.arraycopy(this.xPoints, first, xPoints, 0, nbPoints);
+		System.arraycopy(this.yPoints, first, yPoints, 0, nbPoints);
+		return nbPoints;
+	}
+
+	public boolean isPoints() {
+		return points;
+	}
+
+	public boolean isLine() {
+		return line;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	public int getNbObjects() {
+		return nbObjects;
+	}
+
+	/**
+	 * @return The total number of points of the objects.
+	 */
+	public int getNbPoints() {
+		return firstPoints[nbObjects];
+	}
+
+	/**
+	 * @return The number of points of one object.
+	 */
+	public int getNbPoints(int index) {
+		return firstPoints[index + 1] - firstPoints[index];
+	}
+
+	public int[] getTypes() {
+		return types;
+	}
+
+	/**
+	 * @return The sub-types, 0 for the polys.
+	 */
+	public int[] getSubTypes() {
+		return subTypes;
+	}
+
+	public long[] getLabels() {
+		return labels;
+	}
+
+	public int[] getFirstPoints() {
+		return firstPoints;
+	}
+
+	/**
+	 * @return The longitudes or X coordinates of all the objects. Can be
+	 *         modified in place, at least {@link #getNbPoints()} long.
+	 */
+	public int[] getXPoints() {
+		return xPoints;
+	}
+
+	/**
+	 * @return Same as {@link #getXPoints()}, for the latitudes or Y
+	 *         coordinates.
+	 */
+	public int[] getYPoints() {
+		return yPoints;
+	}
+
+	private int addObject(int type, int subType, long label, int nbPoints) {
+		int first = firstPoints[nbObjects];
+		ensureSize(nbObjects + 1, first + nbPoints);
+		types[nbObjects] = type;
+		subTypes[nbObjects] = subType;
+		labels[nbObjects] = label;
+		nbObjects++;
+		firstPoints[nbObjects] = first + nbPoints;
+		return first;
+	}
+
+	private void ensureSize(int nbObjects, int nbPoints) {
+		if (nbObjects > types.length) {
+			int newSize = Math.max(types.length * 2, nbObjects);
+			types = copyOf(types, newSize);
+			subTypes = copyOf(subTypes, newSize);
+			labels = copyOf(labels, newSize);
+			firstPoints = copyOf(firstPoints, newSize + 1);
+		}
+		if (nbPoints > xPoints.length) {
+			int newSize = Math.max(xPoints.length * 2, nbPoints);
+			xPoints = copyOf(xPoints, newSize);
+			yPoints = copyOf(yPoints, newSize);
+		}
+	}
+
+	private static int[] copyOf(int[] old, int size) {
+		int[] result = new int[size];
+		System.arraycopy(old, 0, result, 0, Math.min(size, old.length));
+		return result;
+	}
+
+	private static long[] copyOf(long[] old, int size) {
+		long[] result = new long[size];
+		System.arraycopy(old, 0, result, 0, Math.min(size, old.length));
+		return result;
+	}
+}
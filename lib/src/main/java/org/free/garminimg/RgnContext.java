@@ -27,8 +27,21 @@ class RgnContext {
 
     int[] lats = new int[50];
 
+	/**
+	 * The bounds of the segments of the current sub-division, by segment
+	 * position. The start is -1 for the missing segments.
+	 */
+	final long[] segmentStarts = new long[7];
+
+	final long[] segmentEnds = new long[7];
+
+	/**
+	 * Where the objects are collected for a {@link BatchMapListener}.
+	 */
+	final ObjectBatch batch = new ObjectBatch();
+
 	public final void checkCoordsSize(int nbPoints) {
-		if (nbPoints >= longs.length) {
+		while (nbPoints >= longs.length) {
 			longs = increaseSize(longs);
 			lats = increaseSize(lats);
 		}
@@ -19,12 +19,13 @@
  */
 package org.free.garminimg;
 
-import android.util.Log;
-
 import org.free.garminimg.utils.ImgConstants;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.BitSet;
 
 /**
@@ -32,8 +33,6 @@ import java.util.BitSet;
  */
 class RgnSubFile extends ImgSubFile {
 
-	private static final String TAG = "-RgnSubFile->";
-
 	private long dataOffset;
 
 	private long dataLength;
@@ -58,6 +57,29 @@ class RgnSubFile extends ImgSubFile {
 
 	private static final int SEG_POS_EXTPOLYGON = 4;
 
+	/**
+	 * The object kind of each segment position.
+	 */
+	private static final int[] SEG_KINDS = { ObjectKind.POINT,
+			ObjectKind.INDEXED_POINT, ObjectKind.POLYLINE, ObjectKind.POLYGON,
+			ObjectKind.EXTENDED_POLYGON, ObjectKind.EXTENDED_POLYLINE,
+			ObjectKind.EXTENDED_POINT };
+
+	/**
+	 * The order in which the segments are sent to the listener.
+	 */
+	private static final int[] PARSE_ORDER = { SEG_POS_POLYGON,
+			SEG_POS_EXTPOLYGON, SEG_POS_POLYLINE, SEG_POS_EXTPOLYLINE,
+			SEG_POS_POINT, SEG_POS_IPOINT, SEG_POS_EXTPOINT };
+
+	private static final int LABEL_NONE = 0;
+
+	private static final int LABEL_SIMPLE = 1;
+
+	private static final int LABEL_POI = 2;
+
+	private static final int LABEL_LINE_IN_NET = 3;
+
 	private final double coefUnitsDist;
 
 	public RgnSubFile(String filename, String filetype, int fileSize,
@@ -92,6 +114,32 @@ class RgnSubFile extends ImgSubFile {
 
 	}
 
+	@Override
+	void writeIndex(DataOutput out) throws IOException {
+		super.writeIndex(out);
+		out.writeLong(dataOffset);
+		out.writeLong(dataLength);
+		out.writeLong(extendedPolygonsOffset);
+		out.writeLong(extendedPolygonsLength);
+		out.writeLong(extendedPolylinesOffset);
+		out.writeLong(extendedPolylinesLength);
+		out.writeLong(extendedPoisOffset);
+		out.writeLong(extendedPoisLength);
+	}
+
+	@Override
+	void readIndex(DataInput in) throws IOException {
+		super.readIndex(in);
+		dataOffset = in.readLong();
+		dataLength = in.readLong();
+		extendedPolygonsOffset = in.readLong();
+		extendedPolygonsLength = in.readLong();
+		extendedPolylinesOffset = in.readLong();
+		extendedPolylinesLength = in.readLong();
+		extendedPoisOffset = in.readLong();
+		extendedPoisLength = in.readLong();
+	}
+
 	public boolean hasExtendedPolygons() {
 
 		return extendedPolygonsLength > 0;
@@ -128,74 +176,252 @@ class RgnSubFile extends ImgSubFile {
 			NetSubFile net, MapListener listener, int targetLevel,
 			int objectKindFilter, BitSet objectTypeFilter, RgnContext rgnContext)
 			throws IOException {
-		Segment[] segments = getSegments(subDivision, rgnContext.context);
-		if (segments == null)
-			return;
-
-		if ((objectKindFilter & ObjectKind.POLYGON) != 0) {
-			final Segment segment = segments[SEG_POS_POLYGON];
-			if (segment != null) {
-				parsePoly(subDivision, net, segment, listener, false,
-						targetLevel, objectTypeFilter, rgnContext);
+		GeometryCache cache = fileBag.getImgContext().getGeometryCache();
+		if (!cache.isEnabled())
+			cache = null;
+		boolean hasSegments = false;
+		boolean segmentsRead = false;
+		for (int cpt = 0; cpt < PARSE_ORDER.length; ++cpt) {
+			final int segPos = PARSE_ORDER[cpt];
+			if ((objectKindFilter & SEG_KINDS[segPos]) == 0)
+				continue;
+			DecodedSegment decoded = null;
+			if (cache != null) {
+				// the cached segments are complete, the filter is applied
+				// when sending them
+				decoded = cache.get(this, subDivision.getIndex(), segPos);
+				if (decoded != null) {
+					ListenerSink sink = new ListenerSink(listener, segPos,
+							objectTypeFilter, rgnContext);
+					decoded.replay(sink, isPoints(segPos), rgnContext);
+					sink.flush();
+					continue;
+				}
 			}
-		}
-		if ((objectKindFilter & ObjectKind.EXTENDED_POLYGON) != 0) {
-			final Segment segment = segments[SEG_POS_EXTPOLYGON];
-			if (segment != null) {
-				parseExtPoly(subDivision, net, segment, listener, false,
-						targetLevel, objectTypeFilter, rgnContext);
+			if (!segmentsRead) {
+				hasSegments = getSegments(subDivision, rgnContext);
+				segmentsRead = true;
+			}
+			if (cache == null) {
+				if (!hasSegments)
+					return;
+				if (rgnContext.segmentStarts[segPos] >= 0) {
+					ListenerSink sink = new ListenerSink(listener, segPos,
+							null, rgnContext);
+					try {
+						parseSegment(subDivision, net, segPos, sink,
+								objectTypeFilter, rgnContext);
+					} finally {
+						// what was decoded before an error is sent, as without
+						// batches
+						sink.flush();
+					}
+				}
+			} else {
+				decoded = new DecodedSegment();
+				if (hasSegments && rgnContext.segmentStarts[segPos] >= 0)
+					parseSegment(subDivision, net, segPos,
+							decoded, null, rgnContext);
+				decoded.trim();
+				cache.put(this, subDivision.getIndex(), segPos, decoded);
+				ListenerSink sink = new ListenerSink(listener, segPos,
+						objectTypeFilter, rgnContext);
+				decoded.replay(sink, isPoints(segPos), rgnContext);
+				sink.flush();
 			}
 		}
+	}
 
-		if ((objectKindFilter & ObjectKind.POLYLINE) != 0) {
-			final Segment segment = segments[SEG_POS_POLYLINE];
-			if (segment != null) {
-				parsePoly(subDivision, net, segment, listener, true,
-						targetLevel, objectTypeFilter, rgnContext);
-			}
+	/**
+	 * @param objectTypeFilter
+	 *            If not null, the objects of the other types are skipped
+	 *            without decoding their coordinates. Applies to the type given
+	 *            to the sink.
+	 */
+	private void parseSegment(SubDivision subDivision, NetSubFile net,
+			int segPos, ObjectSink sink, BitSet objectTypeFilter,
+			RgnContext rgnContext) throws IOException {
+		final long segmentStart = rgnContext.segmentStarts[segPos];
+		final long segmentEnd = rgnContext.segmentEnds[segPos];
+		switch (segPos) {
+		case SEG_POS_POLYGON:
+			parsePoly(subDivision, net, segmentStart, segmentEnd, sink, false,
+					objectTypeFilter, rgnContext);
+			break;
+		case SEG_POS_EXTPOLYGON:
+			parseExtPoly(subDivision, segmentStart, segmentEnd, sink,
+					objectTypeFilter, rgnContext);
+			break;
+		case SEG_POS_POLYLINE:
+			parsePoly(subDivision, net, segmentStart, segmentEnd, sink, true,
+					objectTypeFilter, rgnContext);
+			break;
+		case SEG_POS_EXTPOLYLINE:
+			parseExtPoly(subDivision, segmentStart, segmentEnd, sink,
+					objectTypeFilter, rgnContext);
+			break;
+		case SEG_POS_POINT:
+		case SEG_POS_IPOINT:
+			parsePoints(subDivision, segmentStart, segmentEnd, sink,
+					objectTypeFilter, rgnContext.context);
+			break;
+		default:
+			parseExtPoints(subDivision, segmentStart, segmentEnd, sink,
+					objectTypeFilter, rgnContext.context);
+			break;
 		}
-		if ((objectKindFilter & ObjectKind.EXTENDED_POLYLINE) != 0) {
-			final Segment segment = segments[SEG_POS_EXTPOLYLINE];
-			if (segment != null) {
-				parseExtPoly(subDivision, net, segment, listener, true,
-						targetLevel, objectTypeFilter, rgnContext);
+	}
+
+	private static boolean isPoints(int segPos) {
+		return segPos == SEG_POS_POINT || segPos == SEG_POS_IPOINT
+				|| segPos == SEG_POS_EXTPOINT;
+	}
+
+	/**
+	 * Receives the objects decoded from the RGN, with their label packed by
+	 * {@link RgnSubFile#packLabel(int, int, int)}.
+	 */
+	interface ObjectSink {
+		void addPoint(int type, int subType, int longitude, int latitude,
+				long label);
+
+		void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, long label);
+	}
+
+	/**
+	 * Sends the objects of one segment to a {@link MapListener}, creating the
+	 * labels. For a {@link BatchMapListener}, they are collected and sent by
+	 * {@link #flush()}.
+	 */
+	private class ListenerSink implements ObjectSink {
+		private final MapListener listener;
+
+		/**
+		 * The listener, if it takes the label handles.
+		 */
+		private final LabelHandleListener handleListener;
+
+		/**
+		 * The batch being filled, if the listener takes them.
+		 */
+		private final ObjectBatch batch;
+
+		private final int segPos;
+
+		private final BitSet objectTypeFilter;
+
+		public ListenerSink(MapListener listener, int segPos,
+				BitSet objectTypeFilter, RgnContext rgnContext) {
+			this.listener = listener;
+			this.handleListener = listener instanceof LabelHandleListener
+					? (LabelHandleListener) listener : null;
+			this.segPos = segPos;
+			this.objectTypeFilter = objectTypeFilter;
+			if (listener instanceof BatchMapListener) {
+				batch = rgnContext.batch;
+				batch.clear(isPoints(segPos), isLine(),
+						segPos == SEG_POS_IPOINT);
+			} else {
+				batch = null;
 			}
 		}
 
-		if ((objectKindFilter & ObjectKind.POINT) != 0) {
-			final Segment segment = segments[SEG_POS_POINT];
-			if (segment != null) {
-				parsePoints(subDivision, segment, listener, false, targetLevel,
-						objectTypeFilter, rgnContext.context);
-			}
+		public void addPoint(int type, int subType, int longitude,
+				int latitude, long label) {
+			if (objectTypeFilter != null && !objectTypeFilter.get(type))
+				return;
+			if (batch != null)
+				batch.addPoint(type, subType, longitude, latitude, label);
+			else if (handleListener != null)
+				handleListener.addPoint(type, subType, longitude, latitude,
+						label, segPos == SEG_POS_IPOINT);
+			else
+				listener.addPoint(type, subType, longitude, latitude,
+						createLabel(label), segPos == SEG_POS_IPOINT);
 		}
-		if ((objectKindFilter & ObjectKind.INDEXED_POINT) != 0) {
-			final Segment segment = segments[SEG_POS_IPOINT];
-			if (segment != null) {
-				parsePoints(subDivision, segment, listener, true, targetLevel,
-						objectTypeFilter, rgnContext.context);
-			}
+
+		public void addPoly(int type, int[] longitudes, int[] latitudes,
+				int nbPoints, long label) {
+			if (objectTypeFilter != null && !objectTypeFilter.get(type))
+				return;
+			if (batch != null)
+				batch.addPoly(type, longitudes, latitudes, nbPoints, label);
+			else if (handleListener != null)
+				handleListener.addPoly(type, longitudes, latitudes, nbPoints,
+						label, isLine());
+			else
+				listener.addPoly(type, longitudes, latitudes, nbPoints,
+						createLabel(label), isLine());
 		}
-		if ((objectKindFilter & ObjectKind.EXTENDED_POINT) != 0) {
-			final Segment segment = segments[SEG_POS_EXTPOINT];
-			if (segment != null) {
-				parseExtPoints(subDivision, segment, listener, false,
-						targetLevel, objectTypeFilter, rgnContext.context);
+
+		/**
+		 * Send the collected objects, if any.
+		 */
+		public void flush() {
+			if (batch != null && batch.getNbObjects() > 0) {
+				((BatchMapListener) listener).addObjects(batch);
+				batch.clear(isPoints(segPos), isLine(),
+						segPos == SEG_POS_IPOINT);
 			}
 		}
+
+		private boolean isLine() {
+			return segPos == SEG_POS_POLYLINE || segPos == SEG_POS_EXTPOLYLINE;
+		}
+	}
+
+	/**
+	 * @param round
+	 *            If not 0, the label is an elevation in feet to convert and
+	 *            round to this value.
+	 * @return The label as kept by an {@link ObjectSink} and given to the
+	 *         {@link LabelHandleListener}s: its kind, its rounding and its
+	 *         offset in the LBL.
+	 */
+	static long packLabel(int kind, int round, int offset) {
+		return ((long) round << 40) | ((long) kind << 32)
+				| (offset & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return The label of a handle made by
+	 *         {@link #packLabel(int, int, int)}, or null.
+	 */
+	Label createLabel(long label) {
+		int offset = (int) label;
+		Label result;
+		switch ((int) (label >>> 32) & 0xFF) {
+		case LABEL_NONE:
+			return null;
+		case LABEL_POI:
+			result = new POILabel(fileBag, offset);
+			break;
+		case LABEL_LINE_IN_NET:
+			result = new LineInNetLabel(fileBag, offset);
+			break;
+		default:
+			result = new SimpleLabel(fileBag, offset);
+			break;
+		}
+		int round = (int) (label >>> 40);
+		if (round != 0)
+			result = new ElevationLabel(result, coefUnitsDist, round);
+		return result;
 	}
 
 	public Label getIndexPointLabel(SubDivision subDivision, int index)
 			throws IOException {
-		FileContext context = new FileContext();
-		Segment[] segments = getSegments(subDivision, context);
-		if (segments == null)
+		RgnContext rgnContext = new RgnContext();
+		FileContext context = rgnContext.context;
+		if (!getSegments(subDivision, rgnContext))
 			return null;
-		Segment segment = segments[SEG_POS_IPOINT];
-		if (segment != null) {
+		long segmentStart = rgnContext.segmentStarts[SEG_POS_IPOINT];
+		long segmentEnd = rgnContext.segmentEnds[SEG_POS_IPOINT];
+		if (segmentStart >= 0) {
 			int cpt = 0;
-			seek(segment.segmentStart, context);
-			while (getNextReadPos(context) < segment.segmentEnd) {
+			seek(segmentStart, context);
+			while (getNextReadPos(context) < segmentEnd) {
 				int type = readByte(context);
 				int info = readUInt24(context);
 				boolean hasSubType = ((info & 0x800000) != 0); // The doc is
@@ -236,14 +462,13 @@ class RgnSubFile extends ImgSubFile {
 	 * listener.
 	 */
 	private void parsePoly(SubDivision subDivision, NetSubFile net,
-			Segment segment, MapListener listener, boolean line,
-			int targetLevel, BitSet objectTypeFilter, RgnContext rgnContext)
-			throws IOException {
+			long segmentStart, long segmentEnd, ObjectSink sink, boolean line,
+			BitSet objectTypeFilter, RgnContext rgnContext) throws IOException {
 		final FileContext context = rgnContext.context;
-		seek(segment.segmentStart, context);
+		seek(segmentStart, context);
 		final BitStreamReader reader = new BitStreamReader();
 
-		while (getNextReadPos(context) < segment.segmentEnd) {
+		while (getNextReadPos(context) < segmentEnd) {
 			int info = readByte(context);
 			int type;
 			final boolean direction;
@@ -268,6 +493,11 @@ class RgnSubFile extends ImgSubFile {
 			else
 				bitStreamLen = readByte(context);
 			final int bitStreamInfo = readByte(context);
+			if (objectTypeFilter != null && !objectTypeFilter.get(type)
+					&& bitStreamLen > 0) {
+				seek(getNextReadPos(context) + bitStreamLen, context);
+				continue;
+			}
 
 			reader.reset(bitStreamLen);
 			int nbPoints = 0;
@@ -325,42 +555,43 @@ class RgnSubFile extends ImgSubFile {
 			}
 			reader.finish(context);
 
-			Label label = null;
+			long label = LABEL_NONE;
 			if (labelOffset != 0) {
+				int kind;
 				if (line && dataInNet) {
 					if (net != null) {
-						label = new LineInNetLabel(fileBag, labelOffset);
+						kind = LABEL_LINE_IN_NET;
 					} else {
 						// I don't know what to do, here...
-						label = new SimpleLabel(fileBag, labelOffset);
+						kind = LABEL_SIMPLE;
 					}
 				} else {
-					label = new SimpleLabel(fileBag, labelOffset);
+					kind = LABEL_SIMPLE;
 				}
-				label = translateLabel(type, label, line);
+				label = packLabel(kind, getLabelRound(type, line),
+						labelOffset);
 			}
 			if (objectTypeFilter == null || objectTypeFilter.get(type))
-				listener.addPoly(type, rgnContext.longs, rgnContext.lats,
-						nbPoints, label, line);
+				sink.addPoly(type, rgnContext.longs, rgnContext.lats,
+						nbPoints, label);
 
 		}
-		if (getNextReadPos(context) > segment.segmentEnd) {
-			Log.e(TAG, "Bad poly* subDivision end: expected="
-					+ segment.segmentEnd + " actual=" + getNextReadPos(context)
-					+ " index=" + subDivision.getIndex());
+		if (getNextReadPos(context) > segmentEnd) {
+			fileBag.getImgContext().getDecodeDiagnostics()
+					.problem(DecodeDiagnostics.SEGMENT_OVERRUN, subDivision);
 		}
 	}
 
 	/**
 	 * Parse all the points of the RGN and send the results to the listener.
 	 */
-	private void parseExtPoints(SubDivision subDivision, Segment segment,
-			MapListener listener, boolean indexed, int targetLevel,
-			BitSet objectTypeFilter, ImgSubFile.FileContext context)
-			throws IOException {
+	private void parseExtPoints(SubDivision subDivision,
+			long segmentStart, long segmentEnd,
+			ObjectSink sink, BitSet objectTypeFilter,
+			ImgSubFile.FileContext context) throws IOException {
 
-		seek(segment.segmentStart, context);
-		while (getNextReadPos(context) < segment.segmentEnd) {
+		seek(segmentStart, context);
+		while (getNextReadPos(context) < segmentEnd) {
 			int tipo = readByte(context);
 			int subtipo = readByte(context);
 			int fullTipo = ((tipo + 0x100) << 8) + (subtipo % 32);
@@ -370,17 +601,23 @@ class RgnSubFile extends ImgSubFile {
 			final int longitudeDelta = readInt16(context);
 			final int latitudeDelta = readInt16(context);
 
-			Label label = null;
+			if (objectTypeFilter != null
+					&& !objectTypeFilter.get(fullTipo >> 8)) {
+				if (hasLbl)
+					seek(getNextReadPos(context) + 3, context);
+				continue;
+			}
+			long label = LABEL_NONE;
 			if (hasLbl) {
-				label = new SimpleLabel(fileBag, readUInt24(context));
+				label = packLabel(LABEL_SIMPLE, 0, readUInt24(context));
 			}
-			listener.addPoint(fullTipo >> 8, fullTipo & 0xff,
+			sink.addPoint(fullTipo >> 8, fullTipo & 0xff,
 					subDivision.getLongitude(longitudeDelta, 0),
-					subDivision.getLatitude(latitudeDelta, 0), label, indexed);
+					subDivision.getLatitude(latitudeDelta, 0), label);
 		}
-		if (getNextReadPos(context) > segment.segmentEnd) {
-			Log.e(TAG, "Bad segment end: expected=" + segment.segmentEnd
-					+ " actual=" + getNextReadPos(context));
+		if (getNextReadPos(context) > segmentEnd) {
+			fileBag.getImgContext().getDecodeDiagnostics()
+					.problem(DecodeDiagnostics.SEGMENT_OVERRUN, subDivision);
 		}
 	}
 
@@ -388,16 +625,16 @@ class RgnSubFile extends ImgSubFile {
 	 * Parse all the poly[gons|lines] of the RGN and send the results to the
 	 * listener.
 	 */
-	private void parseExtPoly(SubDivision subDivision, NetSubFile net,
-			Segment segment, MapListener listener, boolean line,
-			int targetLevel, BitSet objectTypeFilter, RgnContext rgnContext)
+	private void parseExtPoly(SubDivision subDivision,
+			long segmentStart, long segmentEnd,
+			ObjectSink sink, BitSet objectTypeFilter, RgnContext rgnContext)
 			throws IOException {
 		final FileContext context = rgnContext.context;
 
-		seek(segment.segmentStart, context);
+		seek(segmentStart, context);
 		final BitStreamReader reader = new BitStreamReader();
 
-		while (getNextReadPos(context) < segment.segmentEnd) {
+		while (getNextReadPos(context) < segmentEnd) {
 
 			int tipo = readByte(context);
 			int subtipo = readByte(context);
@@ -417,6 +654,13 @@ class RgnSubFile extends ImgSubFile {
 				bitStreamLen = bitStreamLen / 2 - 1;
 
 			final int bitStreamInfo = readByte(context);
+			final boolean skip = objectTypeFilter != null
+					&& !objectTypeFilter.get(fullTipo);
+			if (skip && bitStreamLen > 0) {
+				seek(getNextReadPos(context) + bitStreamLen
+						+ (hasLbl ? 3 : 0), context);
+				continue;
+			}
 			reader.reset(bitStreamLen);
 			int nbPoints = 0;
 
@@ -466,48 +710,35 @@ class RgnSubFile extends ImgSubFile {
 				}
 				reader.finish(context);
 			} catch (Exception e) {
-				System.out.println("SubDivision " + segment.segmentEnd
-						+ " actual=" + getNextReadPos(context) + " index="
-						+ subDivision.getIndex());
+				fileBag.getImgContext().getDecodeDiagnostics()
+						.problem(DecodeDiagnostics.BROKEN_BIT_STREAM,
+								subDivision);
 				return;
 			}
-			Label label = null;
+			long label = LABEL_NONE;
 			if (hasLbl) {
-				label = new SimpleLabel(fileBag, readUInt24(context));
+				label = packLabel(LABEL_SIMPLE, 0, readUInt24(context));
 			}
-			listener.addPoly(fullTipo, rgnContext.longs, rgnContext.lats,
-					nbPoints, label, line);
+			if (!skip)
+				sink.addPoly(fullTipo, rgnContext.longs, rgnContext.lats,
+						nbPoints, label);
 		}
-		if (getNextReadPos(context) > segment.segmentEnd) {
-			Log.e(TAG, "Bad poly* subDivision end: expected="
-					+ segment.segmentEnd + " actual=" + getNextReadPos(context)
-					+ " index=" + subDivision.getIndex());
+		if (getNextReadPos(context) > segmentEnd) {
+			fileBag.getImgContext().getDecodeDiagnostics()
+					.problem(DecodeDiagnostics.SEGMENT_OVERRUN, subDivision);
 		}
 	}
 
-	private Label translateLabel(int type, Label label, boolean line)
-			throws IOException {
-		if (label != null && line) {
-			if (type >= ImgConstants.MINOR_LAND_CONTOUR
-					&& type <= ImgConstants.MAJOR_DEPTH_CONTOUR) {
-				return translateLabel(label, 10);
-			}
-		}
-		return label;
-	}
-
-	private Label translateLabel(Label label, int round) {
-
-		double feet = 0.;
-		try {
-			feet = Double.parseDouble(label.getName());
-			label = new SimpleLabel(Integer.toString((int) Math.round(feet
-					* coefUnitsDist / round)
-					* round));
-		} catch (Exception e) {
-			feet = 0.;
+	/**
+	 * @return The rounding of the elevation labels of this kind of poly, 0 if
+	 *         it's not a contour line.
+	 */
+	private int getLabelRound(int type, boolean line) {
+		if (line && type >= ImgConstants.MINOR_LAND_CONTOUR
+				&& type <= ImgConstants.MAJOR_DEPTH_CONTOUR) {
+			return 10;
 		}
-		return label;
+		return 0;
 	}
 
 	private int convertCoordinateLength(int i, int sign, int extraBit) {
@@ -524,12 +755,12 @@ class RgnSubFile extends ImgSubFile {
 	/**
 	 * Parse all the points of the RGN and send the results to the listener.
 	 */
-	private void parsePoints(SubDivision subDivision, Segment segment,
-			MapListener listener, boolean indexed, int targetLevel,
-			BitSet objectTypeFilter, ImgSubFile.FileContext context)
-			throws IOException {
-		seek(segment.segmentStart, context);
-		while (getNextReadPos(context) < segment.segmentEnd) {
+	private void parsePoints(SubDivision subDivision,
+			long segmentStart, long segmentEnd,
+			ObjectSink sink, BitSet objectTypeFilter,
+			ImgSubFile.FileContext context) throws IOException {
+		seek(segmentStart, context);
+		while (getNextReadPos(context) < segmentEnd) {
 			int type = readByte(context);
 			int info = readUInt24(context);
 			boolean hasSubType = ((info & 0x800000) != 0); // The doc is wrong
@@ -542,86 +773,96 @@ class RgnSubFile extends ImgSubFile {
 			if (hasSubType) {
 				subType = readByte(context);
 			}
+			if (objectTypeFilter != null && !objectTypeFilter.get(type))
+				continue;
 
-			Label label = null;
+			long label = LABEL_NONE;
 			if (lblOffset != 0) {
-				if (isPOI) {
-					label = new POILabel(fileBag, lblOffset);
-				} else {
-					label = new SimpleLabel(fileBag, lblOffset);
-				}
-
+				int fulltipo = (type << 8) + subType;
+				// elevations
+				int round = fulltipo == 0x6616 || fulltipo == 0x6300 ? 1 : 0;
+				label = packLabel(isPOI ? LABEL_POI : LABEL_SIMPLE, round,
+						lblOffset);
 			}
-			int fulltipo = (type << 8) + subType;
-			if (fulltipo == 0x6616 || fulltipo == 0x6300) {
-				label = translateLabel(label, 1);
-			}
-			listener.addPoint(type, subType,
+			sink.addPoint(type, subType,
 					subDivision.getLongitude(longitudeDelta, 0),
-					subDivision.getLatitude(latitudeDelta, 0), label, indexed);
+					subDivision.getLatitude(latitudeDelta, 0), label);
 		}
-		if (getNextReadPos(context) > segment.segmentEnd) {
-			Log.e(TAG, "Bad segment end: expected=" + segment.segmentEnd
-					+ " actual=" + getNextReadPos(context));
+		if (getNextReadPos(context) > segmentEnd) {
+			fileBag.getImgContext().getDecodeDiagnostics()
+					.problem(DecodeDiagnostics.SEGMENT_OVERRUN, subDivision);
 		}
 	}
 
-	private Segment[] getSegments(SubDivision subDivision,
-			ImgSubFile.FileContext context) throws IOException {
+	/**
+	 * Find the bounds of the segments of the sub-division, stored in the
+	 * segmentStarts and segmentEnds of the context.
+	 * 
+	 * @return false if the sub-division has no objects.
+	 */
+	private boolean getSegments(SubDivision subDivision, RgnContext rgnContext)
+			throws IOException {
 
+		final FileContext context = rgnContext.context;
+		final long[] starts = rgnContext.segmentStarts;
+		final long[] ends = rgnContext.segmentEnds;
 		long offset = subDivision.getDataOffset() + dataOffset;
 		long end = subDivision.getDataEnd() + dataOffset;
 		int objectTypes = subDivision.getObjectTypes();
 		if (objectTypes == 0)
-			return null;
-		Segment[] result = new Segment[7];
+			return false;
+		Arrays.fill(starts, -1);
+		Arrays.fill(ends, 0);
 
 		// poi/line/polygon ordinarios
 		if (subDivision.hasData()) {
 			int nbTypes = subDivision.getNbObjectTypes();
 			if (nbTypes > 0) {
+				// 0 marks the segments present, until their bounds are known
 				if ((objectTypes & ObjectKind.POINT) != 0) {
-					result[SEG_POS_POINT] = new Segment(ObjectKind.POINT);
+					starts[SEG_POS_POINT] = 0;
 				}
 				if ((objectTypes & ObjectKind.INDEXED_POINT) != 0) {
-					result[SEG_POS_IPOINT] = new Segment(
-							ObjectKind.INDEXED_POINT);
+					starts[SEG_POS_IPOINT] = 0;
 				}
 				if ((objectTypes & ObjectKind.POLYLINE) != 0) {
-					result[SEG_POS_POLYLINE] = new Segment(ObjectKind.POLYLINE);
+					starts[SEG_POS_POLYLINE] = 0;
 				}
 				if ((objectTypes & ObjectKind.POLYGON) != 0) {
-					result[SEG_POS_POLYGON] = new Segment(ObjectKind.POLYGON);
+					starts[SEG_POS_POLYGON] = 0;
 				}
 				seek(offset, context);
 				int nbPointers = nbTypes - 1;
 				long segmentStart = offset + nbPointers * 2;
 				int curType = 0;
+				DecodeDiagnostics diagnostics = fileBag.getImgContext()
+						.getDecodeDiagnostics();
 				for (int cpt = 0; cpt < nbPointers; ++cpt) {
-					while (result[curType] == null && curType < 4)
+					while (starts[curType] < 0 && curType < 4)
 						curType++;
 					long segmentEnd = readUInt16(context) + offset;
 					if (segmentEnd > end) {
-						System.out
-								.println("WARNING: invalid segment end (too big)");
-						result[curType] = null;
-						// return null;
+						diagnostics.problem(
+								DecodeDiagnostics.SEGMENT_END_TOO_BIG,
+								subDivision);
+						starts[curType] = -1;
 					}
 					if (segmentEnd <= segmentStart) {
-						System.out
-								.println("WARNING: invalid segment end (too small)");
-						result[curType] = null;
-						// return null;
+						diagnostics.problem(
+								DecodeDiagnostics.SEGMENT_END_TOO_SMALL,
+								subDivision);
+						starts[curType] = -1;
 					}
-					if (curType < result.length && result[curType] != null)
-						result[curType].setPosition(segmentStart, segmentEnd);
+					if (curType < starts.length && starts[curType] >= 0)
+						setSegment(starts, ends, curType, segmentStart,
+								segmentEnd);
 					segmentStart = segmentEnd;
 					curType++;
 				}
-				while (result[curType] == null && curType < 4)
+				while (starts[curType] < 0 && curType < 4)
 					curType++;
-				if (curType < result.length && result[curType] != null)
-					result[curType].setPosition(segmentStart, end);
+				if (curType < starts.length && starts[curType] >= 0)
+					setSegment(starts, ends, curType, segmentStart, end);
 			}
 		}
 
@@ -629,81 +870,73 @@ class RgnSubFile extends ImgSubFile {
 			long ini = subDivision.getDataExtPolygonOffset();
 			long fin = subDivision.getDataExtPolygonEnd();
 			if (fin > ini) {
-				result[SEG_POS_EXTPOLYGON] = new Segment(
-						ObjectKind.EXTENDED_POLYGON);
-				result[SEG_POS_EXTPOLYGON].setPosition(extendedPolygonsOffset
-						+ ini, extendedPolygonsOffset + fin);
+				setSegment(starts, ends, SEG_POS_EXTPOLYGON,
+						extendedPolygonsOffset + ini, extendedPolygonsOffset
+								+ fin);
 			}
 		}
 		if ((objectTypes & ObjectKind.EXTENDED_POLYLINE) != 0) {
 			long ini = subDivision.getDataExtPolylineOffset();
 			long fin = subDivision.getDataExtPolylineEnd();
 			if (fin > ini) {
-				result[SEG_POS_EXTPOLYLINE] = new Segment(
-						ObjectKind.EXTENDED_POLYLINE);
-				result[SEG_POS_EXTPOLYLINE].setPosition(extendedPolylinesOffset
-						+ ini, extendedPolylinesOffset + fin);
+				setSegment(starts, ends, SEG_POS_EXTPOLYLINE,
+						extendedPolylinesOffset + ini, extendedPolylinesOffset
+								+ fin);
 			}
 		}
 		if ((objectTypes & ObjectKind.EXTENDED_POINT) != 0) {
 			long ini = subDivision.getDataExtPoiOffset();
 			long fin = subDivision.getDataExtPoiEnd();
 			if (fin > ini) {
-				result[SEG_POS_EXTPOINT] = new Segment(
-						ObjectKind.EXTENDED_POINT);
-				result[SEG_POS_EXTPOINT].setPosition(extendedPoisOffset + ini,
-						extendedPoisOffset + fin);
+				setSegment(starts, ends, SEG_POS_EXTPOINT, extendedPoisOffset
+						+ ini, extendedPoisOffset + fin);
 			}
 		}
-		return result;
+		return true;
 	}
 
-	private static class Segment {
-		private long segmentStart;
-
-		private long segmentEnd;
-
-		private final int type;
-
-		public Segment(int type) {
-			this.type = type;
-		}
-
-		public void setPosition(long segmentStart, long segmentEnd)
-				throws IOException {
-			if (segmentStart > segmentEnd)
-				throw new IOException(
-						"A segment's end cannot be before it's start!");
-			this.segmentStart = segmentStart;
-			this.segmentEnd = segmentEnd;
-		}
+	private static void setSegment(long[] starts, long[] ends, int segPos,
+			long segmentStart, long segmentEnd) throws IOException {
+		if (segmentStart > segmentEnd)
+			throw new IOException(
+					"A segment's end cannot be before it's start!");
+		starts[segPos] = segmentStart;
+		ends[segPos] = segmentEnd;
 	}
 
 	/**
 	 * Reads a series of bits from the RGN file regardless of the Bytes limits.
+	 * The bytes are loaded up to 8 at a time in an accumulator.
 	 */
 	private class BitStreamReader {
+		/**
+		 * Number of bytes of the stream not loaded yet. Can be negative, see
+		 * {@link #refill(int, FileContext)}.
+		 */
 		int length;
 
-		int remainingBits;
+		/**
+		 * The loaded bits not read yet, LSB first.
+		 */
+		long loaded;
 
-		int curByte;
+		int nbLoaded;
 
 		public final void reset(int length) {
 			this.length = length;
-			remainingBits = 0;
+			loaded = 0;
+			nbLoaded = 0;
 		}
 
 		public final void finish(FileContext context) throws IOException {
-			while (length > 0) {
-				readByte(context);
-				--length;
+			if (length > 0) {
+				seek(getNextReadPos(context) + length, context);
+				length = 0;
 			}
-
 		}
 
-		public final boolean hasNext(int nbBits) {
-			return length * 8 + remainingBits >= nbBits;
+		public final boolean hasNext(int toGet) {
+			return length * 8 + nbLoaded >= toGet;
 		}
 
 		public final int readCoordOffset(int nbBits, int sign, int extraBit,
@@ -766,34 +999,29 @@ class RgnSubFile extends ImgSubFile {
 
 		public final int readNextBits(int toGet, FileContext context)
 				throws IOException {
-			int curPos = 0;
-			int result = 0;
-			do {
-				getSomethingIfNeeded(context);
-				final int remainingToGet = toGet - curPos;
-				if (remainingToGet >= remainingBits) {
-					result |= curByte << curPos;
-					curPos += remainingBits;
-					remainingBits = 0;
-				} else {
-					int mask = (1 << remainingToGet) - 1;
-					result |= (curByte & mask) << curPos;
-					curByte >>>= remainingToGet;
-					remainingBits -= remainingToGet;
-					return result;
-				}
-			} while (curPos < toGet);
+			if (nbLoaded < toGet)
+				refill(toGet, context);
+			int result = (int) (loaded & ((1L << toGet) - 1));
+			loaded >>>= toGet;
+			nbLoaded -= toGet;
 			return result;
 		}
 
-		private void getSomethingIfNeeded(FileContext context)
-				throws IOException {
-			if (remainingBits == 0) {
-				if (length == 0)
+		private void refill(int toGet, FileContext context) throws IOException {
+			while (nbLoaded < toGet) {
+				int nbBytes;
+				if (length > 0) {
+					nbBytes = Math.min(length, (64 - nbLoaded) >> 3);
+				} else if (length == 0) {
 					throw new EOFException();
-				remainingBits = 8;
-				length--;
-				curByte = readByte(context);
+				} else {
+					// broken length of an extended poly: as always done, read
+					// byte per byte until the caller stops
+					nbBytes = 1;
+				}
+				loaded |= readUIntN(nbBytes, context) << nbLoaded;
+				nbLoaded += nbBytes * 8;
+				length -= nbBytes;
 			}
 		}
 	}
@@ -19,9 +19,10 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -124,6 +125,53 @@ public class SubDivision {
 		return last;
 	}
 
+	/**
+	 * Save what was parsed and adjusted by the TRE in the sidecar index. The
+	 * children are written by the caller.
+	 * 
+	 * @see ImgFileIndex
+	 */
+	void writeIndex(DataOutput out) throws IOException {
+		out.writeInt(index);
+		out.writeInt(level);
+		out.writeLong(dataOffset);
+		out.writeLong(dataEnd);
+		out.writeLong(dataExtPolygonOffset);
+		out.writeLong(dataExtPolygonEnd);
+		out.writeLong(dataExtPolylineOffset);
+		out.writeLong(dataExtPolylineEnd);
+		out.writeLong(dataExtPoiOffset);
+		out.writeLong(dataExtPoiEnd);
+		out.writeInt(objectTypes);
+		out.writeInt(longitudeCenter);
+		out.writeInt(latitudeCenter);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(indexNextLevel);
+	}
+
+	static SubDivision readIndex(DataInput in, TreSubFile subFile)
+			throws IOException {
+		int index = in.readInt();
+		int level = in.readInt();
+		SubDivision result = new SubDivision(index, level, subFile);
+		result.dataOffset = in.readLong();
+		result.dataEnd = in.readLong();
+		result.dataExtPolygonOffset = in.readLong();
+		result.dataExtPolygonEnd = in.readLong();
+		result.dataExtPolylineOffset = in.readLong();
+		result.dataExtPolylineEnd = in.readLong();
+		result.dataExtPoiOffset = in.readLong();
+		result.dataExtPoiEnd = in.readLong();
+		result.objectTypes = in.readInt();
+		result.longitudeCenter = in.readInt();
+		result.latitudeCenter = in.readInt();
+		result.width = in.readInt();
+		result.height = in.readInt();
+		result.indexNextLevel = in.readInt();
+		return result;
+	}
+
 	public long getDataOffset() {
 		return dataOffset;
 	}
@@ -296,16 +344,6 @@ public class SubDivision {
 				+ convertMapUnits(latitudeDelta, additionalAccuracy);
 	}
 
-	private boolean matchesCoordinates(int minLong, int maxLong, int minLat,
-			int maxLat) {
-		return CoordUtils
-				.matchesCoordinates(longitudeCenter - getLongitudeWidth(),
-						longitudeCenter + getLongitudeWidth(), latitudeCenter
-								- getLatitudeHeight(), latitudeCenter
-								+ getLatitudeHeight(), minLong, maxLong,
-						minLat, maxLat);
-	}
-
 	public boolean includedInCoordinates(int minLong, int maxLong, int minLat,
 			int maxLat) {
 		return CoordUtils
@@ -316,28 +354,6 @@ public class SubDivision {
 						minLat, maxLat);
 	}
 
-	public void readMap(int minLong, int maxLong, int minLat, int maxLat,
-			int targetLevel, int objectKindFilter, BitSet objectTypeFilter,
-			RgnSubFile rgn, LblSubFile lbl, NetSubFile net,
-			MapListener listener, RgnContext rgnContext) throws IOException {
-
-		if (level < targetLevel)
-			return;
-		if (!matchesCoordinates(minLong, maxLong, minLat, maxLat))
-			return;
-		if (level == targetLevel) {
-			listener.startSubDivision(this);
-			rgn.parseSubDivision(this, lbl, net, listener, targetLevel,
-					objectKindFilter, objectTypeFilter, rgnContext);
-			return;
-		}
-		for (int cpt = 0; cpt < subDivisions.size(); ++cpt) {
-			subDivisions.get(cpt).readMap(minLong, maxLong, minLat, maxLat,
-					targetLevel, objectKindFilter, objectTypeFilter, rgn, lbl,
-					net, listener, rgnContext);
-		}
-	}
-
 	public int getResolution() {
 		return subFile.getResolution(level);
 	}
@@ -19,6 +19,8 @@
  */
 package org.free.garminimg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.BitSet;
@@ -45,6 +47,29 @@ public class TreSubFile extends ImgSubFile {
 
 	private List<SubDivision> rootSubDivisions;
 
+	/**
+	 * The sub-divisions in preorder. The descendants of the one at position i
+	 * are between i+1 and subTreeEnds[i] (excluded).
+	 */
+	private SubDivision[] flatSubDivisions;
+
+	private int[] subTreeEnds;
+
+	private int[] flatLevels;
+
+	private int[] flatMinLongs;
+
+	private int[] flatMaxLongs;
+
+	private int[] flatMinLats;
+
+	private int[] flatMaxLats;
+
+	/**
+	 * The sub-divisions by their index, null where there is none.
+	 */
+	private SubDivision[] subDivisionsByIndex;
+
 	private int lastBigIndex = 0;
 
 	private int maxLevel;
@@ -142,7 +167,173 @@ public class TreSubFile extends ImgSubFile {
 		if (rootSubDivisions == null) {
 			FileContext context = new FileContext();
 			parseLevels(context);
-			parseSubDivisions(context);
+			List<SubDivision> roots = new ArrayList<SubDivision>();
+			try {
+				parseSubDivisions(roots, context);
+			} finally {
+				// keep the sub-divisions parsed before an error
+				rootSubDivisions = roots;
+				flattenSubDivisions();
+			}
+		}
+	}
+
+	/**
+	 * Build the arrays used to walk the tree of sub-divisions.
+	 */
+	private void flattenSubDivisions() {
+		int nb = countSubDivisions(rootSubDivisions);
+		flatSubDivisions = new SubDivision[nb];
+		subTreeEnds = new int[nb];
+		flatLevels = new int[nb];
+		flatMinLongs = new int[nb];
+		flatMaxLongs = new int[nb];
+		flatMinLats = new int[nb];
+		flatMaxLats = new int[nb];
+		flattenSubDivisions(rootSubDivisions, 0);
+		computeFlatBounds();
+
+		int maxIndex = 0;
+		for (SubDivision s : flatSubDivisions) {
+			maxIndex = Math.max(maxIndex, s.getIndex());
+		}
+		subDivisionsByIndex = new SubDivision[maxIndex + 1];
+		for (SubDivision s : flatSubDivisions) {
+			// the first one in preorder, like a search in the tree
+			if (s.getIndex() >= 0 && subDivisionsByIndex[s.getIndex()] == null)
+				subDivisionsByIndex[s.getIndex()] = s;
+		}
+	}
+
+	private static int countSubDivisions(List<SubDivision> subs) {
+		int result = subs.size();
+		for (SubDivision s : subs) {
+			result += countSubDivisions(s.getSubDivisions());
+		}
+		return result;
+	}
+
+	private int flattenSubDivisions(List<SubDivision> subs, int pos) {
+		for (SubDivision s : subs) {
+			int cur = pos++;
+			flatSubDivisions[cur] = s;
+			flatLevels[cur] = s.getLevel();
+			pos = flattenSubDivisions(s.getSubDivisions(), pos);
+			subTreeEnds[cur] = pos;
+		}
+		return pos;
+	}
+
+	/**
+	 * The bounds depend on the resolutions of the levels.
+	 */
+	private void computeFlatBounds() {
+		for (int cpt = 0; cpt < flatSubDivisions.length; ++cpt) {
+			SubDivision s = flatSubDivisions[cpt];
+			int width = s.getLongitudeWidth();
+			int height = s.getLatitudeHeight();
+			flatMinLongs[cpt] = s.getLongitudeCenter() - width;
+			flatMaxLongs[cpt] = s.getLongitudeCenter() + width;
+			flatMinLats[cpt] = s.getLatitudeCenter() - height;
+			flatMaxLats[cpt] = s.getLatitudeCenter() + height;
+		}
+	}
+
+	@Override
+	void writeIndex(DataOutput out) throws IOException {
+		super.writeIndex(out);
+		out.writeInt(northBoundary);
+		out.writeInt(eastBoundary);
+		out.writeInt(southBoundary);
+		out.writeInt(westBoundary);
+		out.writeBoolean(extendedTypes);
+		out.writeLong(extendedTypesOffset);
+		out.writeLong(extendedTypesLength);
+		out.writeInt(extendedTypesSize);
+		out.writeInt(extendedTypesNumber);
+
+		// the levels and the sub-divisions need the RGN to be parsed
+		boolean withSubDivisions = getImgFileBag().getRgnFile() != null;
+		out.writeBoolean(withSubDivisions);
+		if (!withSubDivisions)
+			return;
+		initIfNeeded();
+		out.writeInt(subdivisionss);
+		out.writeInt(decalajeExtendedTypes);
+		out.writeInt(maxLevel);
+		out.writeInt(minLevel);
+		out.writeInt(maxLevelWithData);
+		out.writeInt(lastBigIndex);
+		for (int cpt = 0; cpt < bitsPerCoords.length; ++cpt) {
+			out.writeByte(bitsPerCoords[cpt]);
+			out.writeBoolean(inheriteds[cpt]);
+			out.writeBoolean(levelPresent[cpt]);
+		}
+
+		out.writeInt(flatSubDivisions.length);
+		for (int cpt = 0; cpt < flatSubDivisions.length; ++cpt) {
+			out.writeInt(subTreeEnds[cpt]);
+			flatSubDivisions[cpt].writeIndex(out);
+		}
+	}
+
+	@Override
+	void readIndex(DataInput in) throws IOException {
+		super.readIndex(in);
+		northBoundary = in.readInt();
+		eastBoundary = in.readInt();
+		southBoundary = in.readInt();
+		westBoundary = in.readInt();
+		fullSurface = ((long) northBoundary - southBoundary)
+				* ((long) eastBoundary - westBoundary);
+		extendedTypes = in.readBoolean();
+		extendedTypesOffset = in.readLong();
+		extendedTypesLength = in.readLong();
+		extendedTypesSize = in.readInt();
+		extendedTypesNumber = in.readInt();
+
+		if (!in.readBoolean())
+			return;
+		subdivisionss = in.readInt();
+		decalajeExtendedTypes = in.readInt();
+		maxLevel = in.readInt();
+		minLevel = in.readInt();
+		maxLevelWithData = in.readInt();
+		lastBigIndex = in.readInt();
+		for (int cpt = 0; cpt < bitsPerCoords.length; ++cpt) {
+			bitsPerCoords[cpt] = in.readUnsignedByte();
+			inheriteds[cpt] = in.readBoolean();
+			levelPresent[cpt] = in.readBoolean();
+		}
+
+		int nbSubDivisions = in.readInt();
+		if (nbSubDivisions < 0)
+			throw new IOException("Invalid number of sub-divisions: "
+					+ nbSubDivisions);
+		List<SubDivision> roots = new ArrayList<SubDivision>();
+		SubDivision[] flat = new SubDivision[nbSubDivisions];
+		int[] ends = new int[nbSubDivisions];
+		// the ancestors of the current sub-division
+		int[] parents = new int[nbSubDivisions];
+		int depth = 0;
+		for (int cpt = 0; cpt < nbSubDivisions; ++cpt) {
+			int end = in.readInt();
+			flat[cpt] = SubDivision.readIndex(in, this);
+			while (depth > 0 && ends[parents[depth - 1]] <= cpt)
+				--depth;
+			int maxEnd = depth > 0 ? ends[parents[depth - 1]] : nbSubDivisions;
+			if (end <= cpt || end > maxEnd)
+				throw new IOException("Invalid sub-division tree at " + cpt);
+			ends[cpt] = end;
+			if (depth == 0)
+				roots.add(flat[cpt]);
+			else
+				flat[parents[depth - 1]].getSubDivisions().add(flat[cpt]);
+			parents[depth++] = cpt;
+		}
+		synchronized (this) {
+			rootSubDivisions = roots;
+			flattenSubDivisions();
 		}
 	}
 
@@ -181,17 +372,17 @@ public class TreSubFile extends ImgSubFile {
 		decalajeExtendedTypes = subdivisionss - extendedTypesNumber;
 	}
 
-	private void parseSubDivisions(FileContext context) throws IOException {
+	private void parseSubDivisions(List<SubDivision> roots,
+			FileContext context) throws IOException {
 
 		seek(initialOffset + 0x29, context);
 		long subDivisionOffset = readUInt32(context);
 		long subDivisionLength = readUInt32(context);
-		rootSubDivisions = new ArrayList<SubDivision>();
 		ArrayList<SubDivision> subDivisionsByIndex = new ArrayList<SubDivision>();
 		parseSubDivision(subDivisionOffset, subDivisionLength,
-				subDivisionsByIndex, rootSubDivisions, maxLevel, 1, context);// subDivisions
+				subDivisionsByIndex, roots, maxLevel, 1, context);// subDivisions
 		parseLastSubDivision(subDivisionOffset, subDivisionLength,
-				subDivisionsByIndex, rootSubDivisions, context);// subDivisions
+				subDivisionsByIndex, roots, context);// subDivisions
 		adjustSubDivisions(subDivisionsByIndex);
 	}
 
@@ -342,6 +533,8 @@ public class TreSubFile extends ImgSubFile {
 			throw new IOException("Cannot guess resolution for level " + level
 					+ ": " + getResolutionsDesc());
 		}
+		if (flatSubDivisions != null)
+			computeFlatBounds();
 	}
 
 	private String getResolutionsDesc() {
@@ -375,30 +568,12 @@ public class TreSubFile extends ImgSubFile {
 	public SubDivision getSubDivision(int i) throws IOException {
 
 		initIfNeeded();
-		if (rootSubDivisions != null) {
-			for (SubDivision s : rootSubDivisions) {
-				SubDivision res = getSubDivisionRecursive(s, i);
-				if (res != null)
-					return res;
-			}
-		}
+		if (subDivisionsByIndex != null && i >= 0
+				&& i < subDivisionsByIndex.length)
+			return subDivisionsByIndex[i];
 		return null;
 	}
 
-	private SubDivision getSubDivisionRecursive(SubDivision sub, int index) {
-
-		if (sub.getIndex() == index) {
-			return sub;
-		} else {
-			for (SubDivision s : sub.getSubDivisions()) {
-				SubDivision res = getSubDivisionRecursive(s, index);
-				if (res != null)
-					return res;
-			}
-			return null;
-		}
-	}
-
 	public boolean matchesCoordinates(int minLong, int maxLong, int minLat,
 			int maxLat) {
 		return CoordUtils.matchesCoordinates(westBoundary, eastBoundary,
@@ -415,9 +590,27 @@ public class TreSubFile extends ImgSubFile {
 			RgnSubFile rgn, LblSubFile lbl, NetSubFile net, MapListener listener)
 			throws IOException {
 
+		RgnContext rgnContext = new RgnContext();
+		for (SubDivision s : findSubDivisions(minLong, maxLong, minLat,
+				maxLat, resolution)) {
+			listener.startSubDivision(s);
+			rgn.parseSubDivision(s, lbl, net, listener, s.getLevel(),
+					objectKindFilter, objectTypeFilter, rgnContext);
+		}
+	}
+
+	/**
+	 * @return The sub-divisions to parse for the given area and resolution,
+	 *         in the order they must be parsed. Each one must be parsed with
+	 *         its own level as target level.
+	 */
+	List<SubDivision> findSubDivisions(int minLong, int maxLong, int minLat,
+			int maxLat, int resolution) throws IOException {
+
 		initIfNeeded();
-		if (rootSubDivisions == null) {
-			return;
+		List<SubDivision> result = new ArrayList<SubDivision>();
+		if (flatSubDivisions == null) {
+			return result;
 		}
 		int targetMinLevel;
 		int targetMaxLevel;
@@ -428,15 +621,27 @@ public class TreSubFile extends ImgSubFile {
 			targetMinLevel = minLevel;
 			targetMaxLevel = maxLevel;
 		}
-		RgnContext rgnContext = new RgnContext();
 		for (int level = targetMaxLevel; level >= targetMinLevel; --level) {
-			for (SubDivision s : rootSubDivisions)// subDivisions1
-			{
-				s.readMap(minLong, maxLong, minLat, maxLat, level,
-						objectKindFilter, objectTypeFilter, rgn, lbl, net,
-						listener, rgnContext);
+			// preorder walk, skipping the sub-trees out of the level or of
+			// the area
+			int cpt = 0;
+			while (cpt < flatSubDivisions.length) {
+				int curLevel = flatLevels[cpt];
+				if (curLevel < level
+						|| !CoordUtils.matchesCoordinates(flatMinLongs[cpt],
+								flatMaxLongs[cpt], flatMinLats[cpt],
+								flatMaxLats[cpt], minLong, maxLong, minLat,
+								maxLat)) {
+					cpt = subTreeEnds[cpt];
+				} else if (curLevel == level) {
+					result.add(flatSubDivisions[cpt]);
+					cpt = subTreeEnds[cpt];
+				} else {
+					++cpt;
+				}
 			}
 		}
+		return result;
 	}
 
 	private int findMaxToDisplay(int targetMinLevel) {
@@ -22,13 +22,17 @@ package org.free.garminimg.utils;
 import org.free.garminimg.CoordUtils;
 import org.free.garminimg.ImgFileBag;
 import org.free.garminimg.Label;
+import org.free.garminimg.ObjectBatch;
 import org.free.garminimg.SubDivision;
 
 /**
  * Remove the objects that are not in the specified range and cut the ones that
- * are not fully within it.
+ * are not fully within it. The labels given as handles are only created for
+ * the objects kept, if the next listener doesn't take the handles. The
+ * batches are sent as batches of the objects kept if the next listener takes
+ * them.
  */
-public class ClippingMapListener implements TransformedMapListener {
+public class ClippingMapListener implements TransformedBatchListener {
 
 	private final int minX;
 
@@ -40,6 +44,30 @@ public class ClippingMapListener implements TransformedMapListener {
 
 	private final TransformedMapListener next;
 
+	private final TransformedLabelHandleListener nextHandle;
+
+	private final TransformedBatchListener nextBatch;
+
+	/**
+	 * The objects kept from the batch being clipped, if the next listener
+	 * takes batches.
+	 */
+	private final ObjectBatch clippedBatch = new ObjectBatch();
+
+	private boolean inBatch;
+
+	private ImgFileBag map;
+
+	/**
+	 * The label of the object being clipped, created from labelHandle on
+	 * the first piece kept if needed.
+	 */
+	private Label label;
+
+	private long labelHandle;
+
+	private boolean withHandle;
+
     private int[] clippedLongitudes = new int[50];
 
     private int[] clippedLatitudes = new int[50];
@@ -48,6 +76,10 @@ public class ClippingMapListener implements TransformedMapListener {
 
 	private int[] clippedLatitudes2 = new int[50];
 
+	private int[] batchXPoints = new int[50];
+
+	private int[] batchYPoints = new int[50];
+
 	public ClippingMapListener(int minX, int maxX, int minY, int maxY,
 			TransformedMapListener next) {
 		super();
@@ -56,6 +88,10 @@ public class ClippingMapListener implements TransformedMapListener {
 		this.maxX = maxX;
 		this.minX = minX;
 		this.next = next;
+		this.nextHandle = next instanceof TransformedLabelHandleListener ? (TransformedLabelHandleListener) next
+				: null;
+		this.nextBatch = next instanceof TransformedBatchListener ? (TransformedBatchListener) next
+				: null;
 	}
 
 	public final void addPoint(int type, int subType, int x, int y,
@@ -65,29 +101,114 @@ public class ClippingMapListener implements TransformedMapListener {
 		}
 	}
 
+	public final void addPoint(int type, int subType, int x, int y,
+			long label, boolean indexed) {
+		if (CoordUtils.includedInCoordinates(x, y, minX, maxX, minY, maxY)) {
+			if (nextHandle != null)
+				nextHandle.addPoint(type, subType, x, y, label, indexed);
+			else
+				next.addPoint(type, subType, x, y, map.getLabel(label),
+						indexed);
+		}
+	}
+
 	public final void addPoly(int type, int[] xPoints, int[] yPoints,
 			int nbPoints, Label label, boolean line) {
+		this.label = label;
+		this.withHandle = false;
+		clipPoly(type, xPoints, yPoints, nbPoints, line);
+	}
+
+	public final void addPoly(int type, int[] xPoints, int[] yPoints,
+			int nbPoints, long label, boolean line) {
+		this.label = null;
+		this.labelHandle = label;
+		this.withHandle = true;
+		clipPoly(type, xPoints, yPoints, nbPoints, line);
+	}
+
+	public final void addObjects(ObjectBatch batch) {
+		inBatch = nextBatch != null;
+		if (inBatch)
+			clippedBatch.clear(batch.isPoints(), batch.isLine(),
+					batch.isIndexed());
+		int[] types = batch.getTypes();
+		long[] labels = batch.getLabels();
+		for (int cpt = 0; cpt < batch.getNbObjects(); ++cpt) {
+			if (batch.isPoints()) {
+				int first = batch.getFirstPoints()[cpt];
+				int x = batch.getXPoints()[first];
+				int y = batch.getYPoints()[first];
+				if (!inBatch)
+					addPoint(types[cpt], batch.getSubTypes()[cpt], x, y,
+							labels[cpt], batch.isIndexed());
+				else if (CoordUtils.includedInCoordinates(x, y, minX, maxX,
+						minY, maxY))
+					clippedBatch.addPoint(types[cpt],
+							batch.getSubTypes()[cpt], x, y, labels[cpt]);
+			} else {
+				int nbPoints = batch.getNbPoints(cpt);
+				if (batchXPoints.length < nbPoints) {
+					batchXPoints = new int[nbPoints];
+					batchYPoints = new int[nbPoints];
+				}
+				batch.getPoly(cpt, batchXPoints, batchYPoints);
+				addPoly(types[cpt], batchXPoints, batchYPoints, nbPoints,
+						labels[cpt], batch.isLine());
+			}
+		}
+		if (inBatch) {
+			inBatch = false;
+			if (clippedBatch.getNbObjects() > 0)
+				nextBatch.addObjects(clippedBatch);
+		}
+	}
+
+	private void clipPoly(int type, int[] xPoints, int[] yPoints,
+			int nbPoints, boolean line) {
 		if (clippedLongitudes.length < nbPoints + 4) {
 			clippedLongitudes = new int[nbPoints + 4];
 			clippedLatitudes = new int[nbPoints + 4];
 		}
 
 		if (line) {
-			clipPolyline(type, xPoints, yPoints, nbPoints, label);
+			clipPolyline(type, xPoints, yPoints, nbPoints);
 		} else {
 			if (clippedLongitudes2.length < nbPoints + 4) {
 				clippedLongitudes2 = new int[nbPoints + 4];
 				clippedLatitudes2 = new int[nbPoints + 4];
 			}
-			clipPolygon(type, xPoints, yPoints, nbPoints, label);
+			clipPolygon(type, xPoints, yPoints, nbPoints);
+		}
+	}
+
+	/**
+	 * Send a piece of the current poly to the next listener.
+	 */
+	private void sendPoly(int type, int[] xPoints, int[] yPoints,
+			int nbPoints, boolean line) {
+		if (inBatch) {
+			clippedBatch.addPoly(type, xPoints, yPoints, nbPoints,
+					labelHandle);
+		} else if (!withHandle) {
+			next.addPoly(type, xPoints, yPoints, nbPoints, label, line);
+		} else if (nextHandle != null) {
+			nextHandle.addPoly(type, xPoints, yPoints, nbPoints, labelHandle,
+					line);
+		} else {
+			if (label == null)
+				label = map.getLabel(labelHandle);
+			next.addPoly(type, xPoints, yPoints, nbPoints, label, line);
 		}
 	}
 
 	public void startMap(ImgFileBag file) {
+		map = file;
 		next.startMap(file);
 	}
 
 	public void startSubDivision(SubDivision subDivision) {
+		map = subDivision.getTre().getImgFileBag();
 		next.startSubDivision(subDivision);
 	}
 
@@ -96,7 +217,7 @@ public class ClippingMapListener implements TransformedMapListener {
 	}
 
 	private void clipPolyline(int type, int[] xPoints, int[] yPoints,
-			int nbPoints, Label label) {
+			int nbPoints) {
 		int nbClippedPoints = 0;
 		for (int cpt = 1; cpt < nbPoints; ++cpt) {
 			int delta = computeInterceptionWithBox(xPoints[cpt - 1],
@@ -106,19 +227,19 @@ public class ClippingMapListener implements TransformedMapListener {
 				nbClippedPoints += delta & 0x0F;
 			} else { // interrupted line (the second point was modified)
 				nbClippedPoints += delta & 0x0F;
-				next.addPoly(type, clippedLongitudes, clippedLatitudes,
-						nbClippedPoints, label, true);
+				sendPoly(type, clippedLongitudes, clippedLatitudes,
+						nbClippedPoints, true);
 				nbClippedPoints = 0;
 			}
 		}
 
 		if (nbClippedPoints > 0)
-			next.addPoly(type, clippedLongitudes, clippedLatitudes,
-					nbClippedPoints, label, true);
+			sendPoly(type, clippedLongitudes, clippedLatitudes,
+					nbClippedPoints, true);
 	}
 
 	private void clipPolygon(int type, int[] xPoints, int[] yPoints,
-			int nbPoints, Label label) {
+			int nbPoints) {
 		int nbClippedPoints = nbPoints;
 
 		nbClippedPoints = clipPolygonOneLimit(xPoints, yPoints,
@@ -134,8 +255,8 @@ public class ClippingMapListener implements TransformedMapListener {
 				clippedLatitudes2);
 
 		if (nbClippedPoints > 0) {
-			next.addPoly(type, clippedLongitudes2, clippedLatitudes2,
-					nbClippedPoints, label, false);
+			sendPoly(type, clippedLongitudes2, clippedLatitudes2,
+					nbClippedPoints, false);
 		}
 	}
 
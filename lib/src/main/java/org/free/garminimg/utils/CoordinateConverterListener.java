@@ -19,22 +19,35 @@
  */
 package org.free.garminimg.utils;
 
+import org.free.garminimg.BatchMapListener;
 import org.free.garminimg.CoordUtils;
 import org.free.garminimg.ImgFileBag;
 import org.free.garminimg.Label;
-import org.free.garminimg.MapListener;
+import org.free.garminimg.ObjectBatch;
 import org.free.garminimg.SubDivision;
 
 /**
  * Does the bridge between a map listener that works in Garmin coordinates and a
- * listener that works in map coordinated (pixels)
+ * listener that works in map coordinated (pixels). The label handles and the
+ * batches are forwarded as is if the listener takes them.
  */
-public class CoordinateConverterListener<COORD> implements MapListener {
+public class CoordinateConverterListener<COORD> implements BatchMapListener {
 	
 	private final MapTransformer<COORD> transformer;
 
 	private final TransformedMapListener listener;
 
+	private final TransformedLabelHandleListener handleListener;
+
+	private final TransformedBatchListener batchListener;
+
+	/**
+	 * The last batch received, with the coordinates converted.
+	 */
+	private final ObjectBatch converted = new ObjectBatch();
+
+	private ImgFileBag map;
+
 	private int[] xPoints = new int[50];
 
 	private int[] yPoints = new int[50];
@@ -47,6 +60,10 @@ public class CoordinateConverterListener<COORD> implements MapListener {
 			TransformedMapListener listener) {
 		this.transformer = transformer;
 		this.listener = listener;
+		this.handleListener = listener instanceof TransformedLabelHandleListener ? (TransformedLabelHandleListener) listener
+				: null;
+		this.batchListener = listener instanceof TransformedBatchListener ? (TransformedBatchListener) listener
+				: null;
 		tempCoord = transformer.createTempCoord();
 	}
 
@@ -58,8 +75,77 @@ public class CoordinateConverterListener<COORD> implements MapListener {
 				(int) (tempXY.y + 0.5), label, indexed);
 	}
 
+	public void addPoint(int type, int subType, int longitude, int latitude,
+			long label, boolean indexed) {
+		if (handleListener == null) {
+			addPoint(type, subType, longitude, latitude, map.getLabel(label),
+					indexed);
+			return;
+		}
+		transformer.wgs84ToMap(CoordUtils.toWGS84Rad(longitude),
+				CoordUtils.toWGS84Rad(latitude), tempCoord, tempXY);
+		handleListener.addPoint(type, subType, (int) (tempXY.x + 0.5),
+				(int) (tempXY.y + 0.5), label, indexed);
+	}
+
 	public void addPoly(int type, int[] longitudes, int[] latitudes,
 			int nbPoints, Label label, boolean line) {
+		convertPoly(longitudes, latitudes, nbPoints);
+		listener.addPoly(type, xPoints, yPoints, nbPoints, label, line);
+	}
+
+	public void addPoly(int type, int[] longitudes, int[] latitudes,
+			int nbPoints, long label, boolean line) {
+		if (handleListener == null) {
+			addPoly(type, longitudes, latitudes, nbPoints, map.getLabel(label),
+					line);
+			return;
+		}
+		convertPoly(longitudes, latitudes, nbPoints);
+		handleListener.addPoly(type, xPoints, yPoints, nbPoints, label, line);
+	}
+
+	public void addObjects(ObjectBatch batch) {
+		converted.copyFrom(batch);
+		transformer.garminGeo2Map(batch.getXPoints(), batch.getYPoints(),
+				converted.getXPoints(), converted.getYPoints(),
+				batch.getNbPoints(), tempXY, tempCoord);
+		if (batchListener != null) {
+			batchListener.addObjects(converted);
+			return;
+		}
+		int[] types = converted.getTypes();
+		long[] labels = converted.getLabels();
+		for (int cpt = 0; cpt < converted.getNbObjects(); ++cpt) {
+			if (converted.isPoints()) {
+				int first = converted.getFirstPoints()[cpt];
+				int x = converted.getXPoints()[first];
+				int y = converted.getYPoints()[first];
+				int subType = converted.getSubTypes()[cpt];
+				if (handleListener != null)
+					handleListener.addPoint(types[cpt], subType, x, y,
+							labels[cpt], converted.isIndexed());
+				else
+					listener.addPoint(types[cpt], subType, x, y,
+							map.getLabel(labels[cpt]), converted.isIndexed());
+			} else {
+				int nbPoints = converted.getNbPoints(cpt);
+				if (xPoints.length < nbPoints) {
+					xPoints = new int[nbPoints];
+					yPoints = new int[nbPoints];
+				}
+				converted.getPoly(cpt, xPoints, yPoints);
+				if (handleListener != null)
+					handleListener.addPoly(types[cpt], xPoints, yPoints,
+							nbPoints, labels[cpt], converted.isLine());
+				else
+					listener.addPoly(types[cpt], xPoints, yPoints, nbPoints,
+							map.getLabel(labels[cpt]), converted.isLine());
+			}
+		}
+	}
+
+	private void convertPoly(int[] longitudes, int[] latitudes, int nbPoints) {
 		if (xPoints.length < nbPoints) { // avoid allocating too many objects by
 											// re-using this one.
 											// increase it if needed
@@ -68,14 +154,15 @@ public class CoordinateConverterListener<COORD> implements MapListener {
 		}
 		transformer.garminGeo2Map(longitudes, latitudes, xPoints, yPoints,
 				nbPoints, tempXY, tempCoord);
-		listener.addPoly(type, xPoints, yPoints, nbPoints, label, line);
 	}
 
 	public void startMap(ImgFileBag file) {
+		map = file;
 		listener.startMap(file);
 	}
 
 	public void startSubDivision(SubDivision subDivision) {
+		map = subDivision.getTre().getImgFileBag();
 		listener.startSubDivision(subDivision);
 	}
 
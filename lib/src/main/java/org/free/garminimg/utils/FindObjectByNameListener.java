@@ -32,7 +32,10 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Special map listener used to find an object according to its name.
+ * Special map listener used to find an object according to its name. Without
+ * a regular expression, it keeps every named object and is meant for
+ * {@link org.free.garminimg.ImgFilesBag#findByName(String, boolean, MapListener)},
+ * which does the matching with its index.
  */
 public class FindObjectByNameListener implements MapListener {
 	
@@ -40,6 +43,13 @@ public class FindObjectByNameListener implements MapListener {
 
 	private final Matcher matcher;
 
+	/**
+	 * Keeps all the objects with a name.
+	 */
+	public FindObjectByNameListener() {
+		matcher = null;
+	}
+
 	/**
 	 * Will use a regular expression.
 	 */
@@ -66,10 +76,10 @@ public class FindObjectByNameListener implements MapListener {
 		try {
 			String name = label.getName();
 			if (name != null && name.length() > 0) {
-				if (matcher != null) {
-					matcher.reset(name);
-					return matcher.find();
-				}
+				if (matcher == null)
+					return true;
+				matcher.reset(name);
+				return matcher.find();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -26,6 +26,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 
 import org.free.garminimg.Label;
+import org.free.garminimg.LabelBatch;
 import org.free.garminimg.UtilsGarminImg;
 
 import java.io.IOException;
@@ -34,7 +35,8 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 /**
- * Sort the labels by importance for latter drawing.
+ * Sort the labels by importance for latter drawing. Their names are decoded
+ * all at once when painting, see {@link LabelBatch}.
  */
 public class LabelDeClutteringFilter {
 
@@ -55,6 +57,11 @@ public class LabelDeClutteringFilter {
 
 	private final ArrayList<LabelInfo> toPaintLabels = new ArrayList<LabelInfo>();
 
+	/**
+	 * The labels added, whose names are not read yet.
+	 */
+	private final ArrayList<PendingLabel> pendingLabels = new ArrayList<PendingLabel>();
+
 	private static final int MARGIN_X = 5;
 
 	private static final int MARGIN_Y = 2;
@@ -163,6 +170,30 @@ public class LabelDeClutteringFilter {
 		MIDDLE_LEFT, TOP_CENTER, MIDDLE_CENTER
 	}
 
+	private static class PendingLabel {
+		private final int x;
+
+		private final int y;
+
+		private final Label label;
+
+		private final Placement placement;
+
+		private final int priority;
+
+		private final int backColor;
+
+		public PendingLabel(int x, int y, Label label, Placement placement,
+				int priority, int backColor) {
+			this.x = x;
+			this.y = y;
+			this.label = label;
+			this.placement = placement;
+			this.priority = priority;
+			this.backColor = backColor;
+		}
+	}
+
 	private class LabelInfo implements Comparable<LabelInfo> {
 		private final String name;
 
@@ -249,7 +280,27 @@ public class LabelDeClutteringFilter {
 		}
 	}
 
+	/**
+	 * Add the labels waiting to be painted to a batch, to decode them with
+	 * other ones.
+	 */
+	public void prefetch(LabelBatch batch) {
+		for (int i = 0; i < pendingLabels.size(); i++) {
+			batch.add(pendingLabels.get(i).label);
+		}
+	}
+
 	public void paint() {
+		LabelBatch batch = new LabelBatch();
+		prefetch(batch);
+		batch.resolve();
+		for (int i = 0; i < pendingLabels.size(); i++) {
+			PendingLabel pending = pendingLabels.get(i);
+			layoutLabel(pending.x, pending.y, pending.label,
+					pending.placement, pending.priority, pending.backColor);
+		}
+		pendingLabels.clear();
+
 		// compute what label has to be painted
 		for (LabelInfo labelInfo : everyLabels) {
 			testAddLabelToPaint(labelInfo);
@@ -284,6 +335,12 @@ public class LabelDeClutteringFilter {
 	
 	private void addLabel(int x, int y, Label label, Placement placement,
 			int priority, int backColor) {
+		pendingLabels.add(new PendingLabel(x, y, label, placement, priority,
+				backColor));
+	}
+
+	private void layoutLabel(int x, int y, Label label, Placement placement,
+			int priority, int backColor) {
 		String name;
 		try {
 			name = label.getName();
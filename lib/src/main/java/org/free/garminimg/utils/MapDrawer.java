@@ -29,6 +29,7 @@ import android.util.Log;
 
 import org.free.garminimg.ImgFileBag;
 import org.free.garminimg.Label;
+import org.free.garminimg.LabelBatch;
 import org.free.garminimg.SimpleLabel;
 import org.free.garminimg.SubDivision;
 import org.free.garminimg.utils.ImgConstants.LinePolyDrawSpec;
@@ -88,6 +89,10 @@ public class MapDrawer implements TransformedMapListener {
 		public int[] xPoints, yPoints;
 		public int nbPoints;
 		public String label;
+		/**
+		 * Where the label is read from, when painting.
+		 */
+		public Label source;
 
 		public LinePolyQueueData(int priority, LinePolyDrawSpec spec,
 				int[] xPoints, int[] yPoints, int nbPoints) {
@@ -100,6 +105,10 @@ public class MapDrawer implements TransformedMapListener {
 			this.label = "";
 		}
 
+		public String getSourceName() {
+			return source != null ? source.getNameNoException() : "";
+		}
+
 		public void setLabel(String label) {
 			if (label == null || label.length() == 0) {
 				return;
@@ -220,7 +229,7 @@ public class MapDrawer implements TransformedMapListener {
 
 			LinePolyQueueData queueData = new LinePolyQueueData(
 					setup.getPriority(), setup, resx, resy, nbPoints);
-			queueData.setLabel(label != null ? label.getNameNoException() : "");
+			queueData.source = label;
 			if (line) {
 				queueLines.add(queueData);
 			} else {
@@ -277,7 +286,20 @@ public class MapDrawer implements TransformedMapListener {
 	// }
 
 	public void finishPainting() {
+		// decode all the labels at once, outside of the lock shared by the
+		// drawers
+		LabelBatch labels = new LabelBatch();
+		for (LinePolyQueueData data : queuePolygons) {
+			labels.add(data.source);
+		}
+		for (LinePolyQueueData data : queueLines) {
+			labels.add(data.source);
+		}
+		labelFilter.prefetch(labels);
+		labels.resolve();
+
 		synchronized (lock) {
+
 			boolean antialiasing = mapConfig.isAntialiasingEnabled();
 			boolean overlay = mapConfig.isOverlay();
 
@@ -323,6 +345,7 @@ public class MapDrawer implements TransformedMapListener {
 			for (int i = 0; i < polys.length; i++) {
 				LinePolyQueueData data = polys[i];
 				if (data.spec.drawLabelHandle(zoomLevel)) {
+					data.setLabel(data.getSourceName());
 					data.spec.getPainter().drawText(canvas, zoomLevel,
 							data.xPoints, data.yPoints, data.nbPoints,
 							data.label);
@@ -331,6 +354,7 @@ public class MapDrawer implements TransformedMapListener {
 			for (int i = 0; i < lines.length; i++) {
 				LinePolyQueueData data = lines[i];
 				if (data.spec.drawLabelHandle(zoomLevel)) {
+					data.setLabel(data.getSourceName());
 					data.spec.getPainter().drawText(canvas, zoomLevel,
 							data.xPoints, data.yPoints, data.nbPoints,
 							data.label);
@@ -21,17 +21,29 @@ package org.free.garminimg.utils;
 
 import org.free.garminimg.ImgFileBag;
 import org.free.garminimg.Label;
+import org.free.garminimg.ObjectBatch;
 import org.free.garminimg.SimpleLabel;
 import org.free.garminimg.SubDivision;
 
 /**
  * Collect some statistics about what is being drawn and forward everything to
- * the next listener.
+ * the next listener. The label handles and the batches are forwarded as is if
+ * the next listener takes them.
  */
-public class StatsListener implements TransformedMapListener {
+public class StatsListener implements TransformedBatchListener {
 	
 	private final TransformedMapListener drawer;
 
+	private final TransformedLabelHandleListener handleDrawer;
+
+	private final TransformedBatchListener batchDrawer;
+
+	private ImgFileBag map;
+
+	private int[] xBuffer = new int[50];
+
+	private int[] yBuffer = new int[50];
+
 	private int nbPoints;
 
 	private int nbPolylines;
@@ -44,6 +56,10 @@ public class StatsListener implements TransformedMapListener {
 
 	public StatsListener(TransformedMapListener drawer) {
 		this.drawer = drawer;
+		this.handleDrawer = drawer instanceof TransformedLabelHandleListener ? (TransformedLabelHandleListener) drawer
+				: null;
+		this.batchDrawer = drawer instanceof TransformedBatchListener ? (TransformedBatchListener) drawer
+				: null;
 	}
 
 	public void addPoint(int type, int subType, int x, int y, Label label,
@@ -55,20 +71,78 @@ public class StatsListener implements TransformedMapListener {
 	public void addPoly(int type, int[] xPoints, int[] yPoints, int nbPoints,
 			Label label, boolean line) {
 		drawer.addPoly(type, xPoints, yPoints, nbPoints, label, line);
+		countPoly(1, nbPoints, line);
+	}
+
+	public void addPoint(int type, int subType, int x, int y, long label,
+			boolean indexed) {
+		if (handleDrawer != null) {
+			handleDrawer.addPoint(type, subType, x, y, label, indexed);
+			nbPoints++;
+		} else {
+			addPoint(type, subType, x, y, map.getLabel(label), indexed);
+		}
+	}
+
+	public void addPoly(int type, int[] xPoints, int[] yPoints, int nbPoints,
+			long label, boolean line) {
+		if (handleDrawer != null) {
+			handleDrawer.addPoly(type, xPoints, yPoints, nbPoints, label, line);
+			countPoly(1, nbPoints, line);
+		} else {
+			addPoly(type, xPoints, yPoints, nbPoints, map.getLabel(label),
+					line);
+		}
+	}
+
+	public void addObjects(ObjectBatch batch) {
+		if (batchDrawer != null) {
+			batchDrawer.addObjects(batch);
+			if (batch.isPoints())
+				nbPoints += batch.getNbObjects();
+			else
+				countPoly(batch.getNbObjects(), batch.getNbPoints(),
+						batch.isLine());
+			return;
+		}
+		int[] types = batch.getTypes();
+		long[] labels = batch.getLabels();
+		for (int cpt = 0; cpt < batch.getNbObjects(); ++cpt) {
+			if (batch.isPoints()) {
+				int first = batch.getFirstPoints()[cpt];
+				addPoint(types[cpt], batch.getSubTypes()[cpt],
+						batch.getXPoints()[first], batch.getYPoints()[first],
+						labels[cpt], batch.isIndexed());
+			} else {
+				int nbPoints = batch.getNbPoints(cpt);
+				if (xBuffer.length < nbPoints) {
+					xBuffer = new int[nbPoints];
+					yBuffer = new int[nbPoints];
+				}
+				batch.getPoly(cpt, xBuffer, yBuffer);
+				addPoly(types[cpt], xBuffer, yBuffer, nbPoints, labels[cpt],
+						batch.isLine());
+			}
+		}
+	}
+
+	private void countPoly(int nbPolys, int nbPoints, boolean line) {
 		if (line) {
-			nbPolylines++;
+			nbPolylines += nbPolys;
 			nbPolylinePoints += nbPoints;
 		} else {
-			nbPolygons++;
+			nbPolygons += nbPolys;
 			nbPolygonPoints += nbPoints;
 		}
 	}
 
 	public void startMap(ImgFileBag file) {
+		map = file;
 		drawer.startMap(file);
 	}
 
 	public void startSubDivision(SubDivision subDivision) {
+		map = subDivision.getTre().getImgFileBag();
 		drawer.startSubDivision(subDivision);
 	}
 
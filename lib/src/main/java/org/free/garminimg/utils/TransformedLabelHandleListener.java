@@ -0,0 +1,46 @@
+/*
+ * JGarminImgParser - A java library to parse .IMG Garmin map files.
+ *
+ * Copyright (C) 2006 Patrick Valsecchi
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.free.garminimg.utils;
+
+import org.free.garminimg.ImgFileBag;
+import org.free.garminimg.Label;
+
+/**
+ * A {@link TransformedMapListener} that can receive the labels as handles,
+ * like a {@link org.free.garminimg.LabelHandleListener}. Use
+ * {@link ImgFileBag#getLabel(long)} on the map of the last startMap to get
+ * the label.
+ */
+public interface TransformedLabelHandleListener extends TransformedMapListener {
+
+	/**
+	 * Same as {@link #addPoint(int, int, int, int, Label, boolean)} with a
+	 * label handle.
+	 */
+	void addPoint(int type, int subType, int x, int y, long label,
+			boolean indexed);
+
+	/**
+	 * Same as {@link #addPoly(int, int[], int[], int, Label, boolean)} with a
+	 * label handle.
+	 */
+	void addPoly(int type, int[] xPoints, int[] yPoints, int nbPoints,
+			long label, boolean line);
+}